@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+/**
+ * The account data a token validation needs: whether the account is enabled
+ * and its precomputed key material. Instances are immutable and cached by the
+ * {@link TinyMfaAccountCache}.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAccount {
+
+  /**
+   * the name of the account
+   */
+  private final String accountName;
+
+  /**
+   * whether the account is enabled
+   */
+  private final boolean enabled;
+
+  /**
+   * the key material of the account. Disabled accounts do not need any
+   */
+  private final TinyMfaKeyHandle keyHandle;
+
+  /**
+   * when this account was loaded (milliseconds since 1970)
+   */
+  private final long loadTime;
+
+  /**
+   * creates a new account
+   *
+   * @param accountName
+   *          the name of the account
+   * @param enabled
+   *          whether the account is enabled
+   * @param keyHandle
+   *          the key material of the account, or null if the account is disabled
+   */
+  public TinyMfaAccount(String accountName, boolean enabled, TinyMfaKeyHandle keyHandle) {
+    this.accountName = accountName;
+    this.enabled     = enabled;
+    this.keyHandle   = keyHandle;
+    this.loadTime    = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the name of the account
+   */
+  public String getAccountName() {
+    return accountName;
+  }
+
+  /**
+   * @return whether the account is enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the key material of the account, or null if the account is disabled
+   */
+  public TinyMfaKeyHandle getKeyHandle() {
+    return keyHandle;
+  }
+
+  /**
+   * @return when this account was loaded (milliseconds since 1970)
+   */
+  public long getLoadTime() {
+    return loadTime;
+  }
+
+  /**
+   * registers a user of the key material, which then stays readable until
+   * {@link #release()} is called, even if the account is destroyed meanwhile.
+   * Accounts without key material can always be retained
+   *
+   * @return false if the key material has already been zeroized
+   */
+  boolean retain() {
+    return keyHandle == null || keyHandle.retain();
+  }
+
+  /**
+   * unregisters a user of the key material, see {@link TinyMfaAccountCache#get(String, java.util.concurrent.Callable)}.
+   * The last one out zeroizes the key material of a destroyed account
+   */
+  public void release() {
+    if (keyHandle != null) {
+      keyHandle.release();
+    }
+  }
+
+  /**
+   * zeroizes the key material of this account, once no computation uses it anymore
+   */
+  public void destroy() {
+    if (keyHandle != null) {
+      keyHandle.destroy();
+    }
+  }
+
+  /**
+   * @return true if the key material of this account has been zeroized
+   */
+  public boolean isReleased() {
+    return keyHandle != null && keyHandle.isReleased();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TinyMfaAccount[accountName=%s, enabled=%s]", accountName, enabled);
+  }
+}
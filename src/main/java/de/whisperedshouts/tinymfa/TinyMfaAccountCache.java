@@ -0,0 +1,327 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded cache of accounts, keyed by account name. Entries expire after a
+ * configurable time to live; once the cache reaches its maximum size, the least
+ * recently used account is evicted. Concurrent loads of the same account are
+ * collapsed into a single load. Whenever an account leaves the cache, its key
+ * material is zeroized.
+ * <p>
+ * An account is handed out retained: its key material stays readable, even if
+ * the account leaves the cache meanwhile, until the caller releases it. The
+ * last release of an account that has left the cache zeroizes it.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAccountCache {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAccountCache.class);
+
+  /**
+   * the number of accounts to keep when no other size is configured
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 50000;
+
+  /**
+   * how long an account is kept when no other time to live is configured
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaAccountCache INSTANCE = new TinyMfaAccountCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+
+  /**
+   * the accounts, in access order
+   */
+  private final LinkedHashMap<String, TinyMfaAccount> accounts;
+
+  /**
+   * the loads that are currently running, by account name
+   */
+  private final ConcurrentHashMap<String, FutureTask<TinyMfaAccount>> runningLoads = new ConcurrentHashMap<>();
+
+  /**
+   * increased with every invalidation. Loads that overlap an invalidation are not cached
+   */
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  /**
+   * lookups answered from the cache
+   */
+  private final LongAdder hitCount = new LongAdder();
+
+  /**
+   * lookups that had to wait for a load
+   */
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * loads that were actually executed
+   */
+  private final LongAdder loadCount = new LongAdder();
+
+  /**
+   * accounts removed because the cache was full or their time to live passed
+   */
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * the maximum number of accounts to keep
+   */
+  private int maximumSize;
+
+  /**
+   * how long an account is kept (milliseconds)
+   */
+  private long timeToLive;
+
+  /**
+   * creates a new cache
+   *
+   * @param maximumSize
+   *          the maximum number of accounts to keep
+   * @param timeToLive
+   *          how long an account is kept (milliseconds)
+   */
+  TinyMfaAccountCache(int maximumSize, long timeToLive) {
+    this.maximumSize = maximumSize;
+    this.timeToLive  = timeToLive;
+    this.accounts    = new LinkedHashMap<String, TinyMfaAccount>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TinyMfaAccount> eldest) {
+        boolean evict = size() > TinyMfaAccountCache.this.maximumSize;
+        if (evict) {
+          eldest.getValue().destroy();
+          evictionCount.increment();
+          if (_logger.isDebugEnabled()) {
+            _logger.debug(String.format("evicting account %s", eldest.getKey()));
+          }
+        }
+        return evict;
+      }
+    };
+  }
+
+  /**
+   * @return the shared cache instance
+   */
+  public static TinyMfaAccountCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * returns the cached account, or loads it. When several threads ask for the
+   * same missing account at once, only one of them executes the loader; the
+   * others wait for its result. The account is retained, the caller has to
+   * {@link TinyMfaAccount#release()} it once it is done with the key material
+   *
+   * @param accountName
+   *          the account to look up
+   * @param loader
+   *          loads the account from the database. May return null if there is
+   *          no such account. Runs on the calling thread
+   * @return the account, or null if there is no such account
+   * @throws Exception
+   *           when the loader failed
+   */
+  public TinyMfaAccount get(String accountName, Callable<TinyMfaAccount> loader) throws Exception {
+    TinyMfaAccount account = getIfPresent(accountName);
+    if (account != null) {
+      hitCount.increment();
+      return account;
+    }
+    missCount.increment();
+
+    FutureTask<TinyMfaAccount> load    = new FutureTask<>(loader);
+    FutureTask<TinyMfaAccount> running = runningLoads.putIfAbsent(accountName, load);
+    if (running != null) {
+      account = unwrap(running);
+      // the load turned out to be stale or has been evicted, and its key material is gone already
+      if (account != null && !account.retain()) {
+        account = get(accountName, loader);
+      }
+      return account;
+    }
+
+    boolean cached = false;
+    try {
+      long invalidationsBeforeLoad = invalidationCount.get();
+      loadCount.increment();
+      load.run();
+      account = unwrap(load);
+      if (account == null) {
+        return null;
+      }
+      synchronized (this) {
+        // an invalidation during the load may have made the result stale
+        if (invalidationsBeforeLoad == invalidationCount.get()) {
+          account.retain();
+          put(account);
+          cached = true;
+        }
+      }
+    } finally {
+      runningLoads.remove(accountName, load);
+    }
+
+    if (!cached) {
+      account.destroy();
+      account = get(accountName, loader);
+    }
+    return account;
+  }
+
+  /**
+   * returns the cached account without loading it. The account is retained,
+   * the caller has to {@link TinyMfaAccount#release()} it
+   *
+   * @param accountName
+   *          the account to look up
+   * @return the account, or null if it is not cached or expired
+   */
+  public synchronized TinyMfaAccount getIfPresent(String accountName) {
+    TinyMfaAccount account = accounts.get(accountName);
+    if (account != null && System.currentTimeMillis() - account.getLoadTime() > timeToLive) {
+      accounts.remove(accountName);
+      account.destroy();
+      evictionCount.increment();
+      account = null;
+    }
+    // a cached account holds the reference of the cache, retaining it cannot fail
+    if (account != null) {
+      account.retain();
+    }
+    return account;
+  }
+
+  /**
+   * caches an account. The cache takes over ownership of its key material
+   *
+   * @param account
+   *          the account to cache
+   */
+  public synchronized void put(TinyMfaAccount account) {
+    TinyMfaAccount replaced = accounts.put(account.getAccountName(), account);
+    if (replaced != null && replaced != account) {
+      replaced.destroy();
+    }
+  }
+
+  /**
+   * removes an account. Needs to be called whenever the account changes
+   *
+   * @param accountName
+   *          the account to remove
+   */
+  public void invalidate(String accountName) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(accountName %s)", "invalidate", accountName));
+    }
+    invalidationCount.incrementAndGet();
+    synchronized (this) {
+      TinyMfaAccount account = accounts.remove(accountName);
+      if (account != null) {
+        account.destroy();
+      }
+    }
+  }
+
+  /**
+   * removes all accounts
+   */
+  public void invalidateAll() {
+    invalidationCount.incrementAndGet();
+    synchronized (this) {
+      for (TinyMfaAccount account : accounts.values()) {
+        account.destroy();
+      }
+      accounts.clear();
+    }
+  }
+
+  /**
+   * applies size and time to live. Surplus accounts are evicted with the next insert
+   *
+   * @param maximumSize
+   *          the maximum number of accounts. Values below 1 are ignored
+   * @param timeToLive
+   *          how long an account is kept (milliseconds). Values below 0 are ignored
+   */
+  public synchronized void configure(int maximumSize, long timeToLive) {
+    if (maximumSize > 0) {
+      this.maximumSize = maximumSize;
+    }
+    if (timeToLive >= 0) {
+      this.timeToLive = timeToLive;
+    }
+  }
+
+  /**
+   * @return the number of cached accounts
+   */
+  public synchronized int size() {
+    return accounts.size();
+  }
+
+  /**
+   * @return hit, miss, load and eviction counts of this cache
+   */
+  public Map<String, Object> getStatistics() {
+    long hits   = hitCount.sum();
+    long misses = missCount.sum();
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("size", size());
+    result.put("hits", hits);
+    result.put("misses", misses);
+    result.put("loads", loadCount.sum());
+    result.put("evictions", evictionCount.sum());
+    result.put("hitRatio", (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses));
+    return result;
+  }
+
+  /**
+   * waits for a load and returns its result
+   *
+   * @param load
+   *          the load to wait for
+   * @return the loaded account
+   * @throws Exception
+   *           the exception the loader failed with
+   */
+  private static TinyMfaAccount unwrap(FutureTask<TinyMfaAccount> load) throws Exception {
+    try {
+      return load.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+}
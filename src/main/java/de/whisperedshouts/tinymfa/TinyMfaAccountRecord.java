@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * An account as read from MFA_ACCOUNTS, without its secret. Written to the
+ * client by the {@link de.whisperedshouts.tinymfa.util.TinyMfaJsonWriter}.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAccountRecord {
+
+  /**
+   * the ID of the row
+   */
+  private final long id;
+
+  /**
+   * the name of the account
+   */
+  private final String accountName;
+
+  /**
+   * whether the account is enabled
+   */
+  private final boolean enabled;
+
+  /**
+   * creates a new record
+   *
+   * @param id
+   *          the ID of the row
+   * @param accountName
+   *          the name of the account
+   * @param enabled
+   *          whether the account is enabled
+   */
+  public TinyMfaAccountRecord(long id, String accountName, boolean enabled) {
+    this.id          = id;
+    this.accountName = accountName;
+    this.enabled     = enabled;
+  }
+
+  /**
+   * reads a record from the current row of an account query
+   *
+   * @param resultSet
+   *          a result set with the columns ID, ACCOUNT_NAME and ISENABLED
+   * @return the record
+   * @throws SQLException
+   *           when the row could not be read
+   */
+  public static TinyMfaAccountRecord fromResultSet(ResultSet resultSet) throws SQLException {
+    return new TinyMfaAccountRecord(resultSet.getLong(1), resultSet.getString(2), resultSet.getBoolean(3));
+  }
+
+  /**
+   * @return the ID of the row
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return the name of the account
+   */
+  public String getAccountName() {
+    return accountName;
+  }
+
+  /**
+   * @return whether the account is enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TinyMfaAccountRecord[id=%s, accountName=%s, enabled=%s]", id, accountName, enabled);
+  }
+}
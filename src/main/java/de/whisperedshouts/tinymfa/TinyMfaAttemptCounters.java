@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.QUERY_TYPE;
+
+/**
+ * Counts failed validation attempts in the MFA_ATTEMPT_COUNTERS table, so all
+ * nodes of a cluster share the same limit. There is one row per account and
+ * window of steps. The limit applies to a sliding window: the attempts of the
+ * previous window are weighted by how much of it still overlaps. Accounts
+ * that reach the limit are locked out, and every lockout lasts twice as long
+ * as the one before, until the account stays clean for a whole window.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAttemptCounters {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAttemptCounters.class);
+
+  /**
+   * lockouts do not grow beyond lockoutSteps * 2^MAXIMUM_BACKOFF_EXPONENT
+   */
+  public static final int MAXIMUM_BACKOFF_EXPONENT = 6;
+
+  /**
+   * the window the counters have been swept for last on this node
+   */
+  private static final AtomicLong lastSweptWindow = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * the length of a window (steps)
+   */
+  private final int windowSteps;
+
+  /**
+   * the failed attempts allowed per sliding window
+   */
+  private final int maximumAttempts;
+
+  /**
+   * the length of the first lockout (steps)
+   */
+  private final int lockoutSteps;
+
+  /**
+   * the state of an account, as read from the counters
+   */
+  public static final class AttemptState {
+
+    /**
+     * the start of the window the state was read for
+     */
+    private final long windowStart;
+
+    /**
+     * the failed attempts within the sliding window, previous window weighted
+     */
+    private final double weightedAttempts;
+
+    /**
+     * how often the account has been locked out without a clean window in between
+     */
+    private final int lockouts;
+
+    /**
+     * the step the account is locked until
+     */
+    private final long lockedUntil;
+
+    private AttemptState(long windowStart, double weightedAttempts, int lockouts, long lockedUntil) {
+      this.windowStart      = windowStart;
+      this.weightedAttempts = weightedAttempts;
+      this.lockouts         = lockouts;
+      this.lockedUntil      = lockedUntil;
+    }
+
+    /**
+     * @return the failed attempts within the sliding window, previous window weighted
+     */
+    public double getWeightedAttempts() {
+      return weightedAttempts;
+    }
+
+    /**
+     * @return the step the account is locked until
+     */
+    public long getLockedUntil() {
+      return lockedUntil;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("AttemptState[windowStart=%s, weightedAttempts=%.2f, lockouts=%s, lockedUntil=%s]",
+          windowStart, weightedAttempts, lockouts, lockedUntil);
+    }
+  }
+
+  /**
+   * creates a new counter view
+   *
+   * @param windowSteps
+   *          the length of a window (steps)
+   * @param maximumAttempts
+   *          the failed attempts allowed per sliding window
+   * @param lockoutSteps
+   *          the length of the first lockout (steps)
+   */
+  public TinyMfaAttemptCounters(int windowSteps, int maximumAttempts, int lockoutSteps) {
+    this.windowSteps     = Math.max(1, windowSteps);
+    this.maximumAttempts = Math.max(1, maximumAttempts);
+    this.lockoutSteps    = Math.max(1, lockoutSteps);
+  }
+
+  /**
+   * reads the counters of an account. Sweeps old counters first, once per window and node
+   *
+   * @param connection
+   *          the connection to use. It is not closed by this method
+   * @param accountName
+   *          the account to read the counters for
+   * @param step
+   *          the current time step
+   * @return the state of the account
+   * @throws SQLException
+   */
+  public AttemptState read(Connection connection, String accountName, long step) throws SQLException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(accountName %s, step %s)", "read", accountName, step));
+    }
+    long windowStart = windowStart(step);
+    sweepIfWindowChanged(connection, windowStart, step);
+
+    long currentAttempts            = 0;
+    long previousAttempts           = 0;
+    int lockouts                    = 0;
+    long lockedUntil                = 0;
+    PreparedStatement prepStatement = null;
+    ResultSet resultSet             = null;
+    try {
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.SELECT_ATTEMPT_COUNTERS));
+      prepStatement.setString(1, accountName);
+
+      resultSet = prepStatement.executeQuery();
+      while (resultSet.next()) {
+        long rowWindowStart = resultSet.getLong(1);
+        if (rowWindowStart == windowStart) {
+          currentAttempts = resultSet.getLong(2);
+        } else if (rowWindowStart == windowStart - windowSteps) {
+          previousAttempts = resultSet.getLong(2);
+        }
+        lockouts    = Math.max(lockouts, resultSet.getInt(3));
+        lockedUntil = Math.max(lockedUntil, resultSet.getLong(4));
+      }
+    } finally {
+      if(resultSet != null) {
+        resultSet.close();
+      }
+      if(prepStatement != null) {
+        prepStatement.close();
+      }
+    }
+
+    // the previous window counts as much as it still overlaps the sliding window
+    double overlap      = (double) (windowSteps - (step - windowStart)) / windowSteps;
+    AttemptState result = new AttemptState(windowStart, currentAttempts + previousAttempts * overlap, lockouts, lockedUntil);
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "read", result));
+    }
+    return result;
+  }
+
+  /**
+   * checks whether an account may attempt a validation
+   *
+   * @param state
+   *          the state of the account, as returned by {@link #read(Connection, String, long)}
+   * @param step
+   *          the current time step
+   * @return true if the account is neither locked nor over the limit
+   */
+  public boolean isAllowed(AttemptState state, long step) {
+    return state.lockedUntil < step && state.weightedAttempts < maximumAttempts;
+  }
+
+  /**
+   * counts a failed attempt. Locks the account out if this attempt reaches the limit
+   *
+   * @param connection
+   *          the connection to use. It is not closed by this method
+   * @param accountName
+   *          the account whose attempt failed
+   * @param step
+   *          the current time step
+   * @param state
+   *          the state read before the attempt
+   * @throws SQLException
+   */
+  public void recordFailure(Connection connection, String accountName, long step, AttemptState state) throws SQLException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(accountName %s, step %s, state %s)", "recordFailure", accountName, step, state));
+    }
+    SqlSelectHelper helper = SqlSelectHelper.forConnection(connection);
+    try {
+      increment(connection, helper, accountName, state.windowStart);
+    } catch (SQLException e) {
+      // two nodes inserting the same row at once. The row exists now, so the second try updates it
+      if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+        throw e;
+      }
+      increment(connection, helper, accountName, state.windowStart);
+    }
+
+    if (state.weightedAttempts + 1 >= maximumAttempts) {
+      int lockouts     = state.lockouts + 1;
+      long lockedUntil = step + ((long) lockoutSteps << Math.min(lockouts - 1, MAXIMUM_BACKOFF_EXPONENT));
+      PreparedStatement prepStatement = null;
+      try {
+        prepStatement = connection.prepareStatement(helper.getQuery(QUERY_TYPE.LOCK_ATTEMPT_COUNTER));
+        prepStatement.setInt(1, lockouts);
+        prepStatement.setLong(2, lockedUntil);
+        prepStatement.setString(3, accountName);
+        prepStatement.setLong(4, state.windowStart);
+        prepStatement.executeUpdate();
+      } finally {
+        if(prepStatement != null) {
+          prepStatement.close();
+        }
+      }
+      _logger.warn(String.format("account %s locked out until step %s (lockout %s)", accountName, lockedUntil, lockouts));
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s", "recordFailure"));
+    }
+  }
+
+  /**
+   * atomically increments the counter of an account and window, creating it if needed
+   *
+   * @param connection
+   *          the connection to use
+   * @param helper
+   *          the query helper of the connection
+   * @param accountName
+   *          the account to count for
+   * @param windowStart
+   *          the window to count in
+   * @throws SQLException
+   */
+  private void increment(Connection connection, SqlSelectHelper helper, String accountName, long windowStart) throws SQLException {
+    PreparedStatement prepStatement = null;
+    try {
+      prepStatement = connection.prepareStatement(helper.getQuery(QUERY_TYPE.INCREMENT_ATTEMPT_COUNTER));
+      prepStatement.setString(1, accountName);
+      prepStatement.setLong(2, windowStart);
+      prepStatement.executeUpdate();
+    } finally {
+      if(prepStatement != null) {
+        prepStatement.close();
+      }
+    }
+  }
+
+  /**
+   * deletes counters that can no longer affect a decision. Only the first
+   * caller of a new window does the sweeping
+   *
+   * @param connection
+   *          the connection to use
+   * @param windowStart
+   *          the start of the current window
+   * @param step
+   *          the current time step
+   */
+  private void sweepIfWindowChanged(Connection connection, long windowStart, long step) {
+    long sweptWindow = lastSweptWindow.get();
+    if (windowStart <= sweptWindow || !lastSweptWindow.compareAndSet(sweptWindow, windowStart)) {
+      return;
+    }
+    PreparedStatement prepStatement = null;
+    try {
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.SWEEP_ATTEMPT_COUNTERS));
+      // the previous window is still part of the sliding window
+      prepStatement.setLong(1, windowStart - windowSteps);
+      prepStatement.setLong(2, step);
+      int removed = prepStatement.executeUpdate();
+      if (_logger.isDebugEnabled()) {
+        _logger.debug(String.format("swept %s attempt counters before window %s", removed, windowStart));
+      }
+    } catch (SQLException e) {
+      // not fatal, the next window tries again
+      _logger.error(e.getMessage());
+    } finally {
+      if(prepStatement != null) {
+        try {
+          prepStatement.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param step
+   *          a time step
+   * @return the first step of the window the step belongs to
+   */
+  private long windowStart(long step) {
+    return step - Math.floorMod(step, (long) windowSteps);
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the number of failed validation attempts per account and time step.
+ * The counters live in memory and are updated without locks; counters of past
+ * steps are swept once per step.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAttemptLimiter {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAttemptLimiter.class);
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaAttemptLimiter INSTANCE = new TinyMfaAttemptLimiter();
+
+  /**
+   * the counter of the most recent step, by account name
+   */
+  private final ConcurrentHashMap<String, StepCounter> counters = new ConcurrentHashMap<>();
+
+  /**
+   * the step the counters have been swept for last
+   */
+  private final AtomicLong lastSweptStep = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * the attempts that have been rejected because of the limit
+   */
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * counts the attempts of one account within one step
+   */
+  private static final class StepCounter {
+
+    /**
+     * the step this counter belongs to
+     */
+    private final long step;
+
+    /**
+     * the attempts that have failed or are still running
+     */
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private StepCounter(long step) {
+      this.step = step;
+    }
+  }
+
+  /**
+   * @return the shared instance
+   */
+  public static TinyMfaAttemptLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * reserves an attempt for an account. The attempt counts against the limit
+   * until it is released by {@link #succeeded(String, long)}, so concurrent
+   * attempts cannot exceed the limit either
+   *
+   * @param accountName
+   *          the account that attempts to validate a token
+   * @param step
+   *          the current time step
+   * @param maximumAttempts
+   *          the number of failed attempts allowed per step
+   * @return false if the limit has been reached
+   */
+  public boolean tryAcquire(String accountName, long step, int maximumAttempts) {
+    sweepIfStepChanged(step);
+
+    StepCounter counter = currentCounter(accountName, step);
+    for (;;) {
+      int attempts = counter.attempts.get();
+      if (attempts >= maximumAttempts) {
+        rejectedCount.incrementAndGet();
+        return false;
+      }
+      if (counter.attempts.compareAndSet(attempts, attempts + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * releases an attempt reserved by {@link #tryAcquire(String, long, int)}
+   * because it succeeded. Failed attempts are not released
+   *
+   * @param accountName
+   *          the account that validated a token
+   * @param step
+   *          the step passed to tryAcquire
+   */
+  public void succeeded(String accountName, long step) {
+    StepCounter counter = counters.get(accountName);
+    if (counter != null && counter.step == step) {
+      counter.attempts.decrementAndGet();
+    }
+  }
+
+  /**
+   * returns the number of failed attempts of an account
+   *
+   * @param accountName
+   *          the account to look up
+   * @param step
+   *          the time step to look up
+   * @return the failed (or running) attempts of the account in this step
+   */
+  public int getAttempts(String accountName, long step) {
+    StepCounter counter = counters.get(accountName);
+    return (counter != null && counter.step == step) ? counter.attempts.get() : 0;
+  }
+
+  /**
+   * @return the number of tracked accounts and rejected attempts
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> result = new HashMap<>();
+    result.put("trackedAccounts", counters.size());
+    result.put("rejectedAttempts", rejectedCount.get());
+    return result;
+  }
+
+  /**
+   * returns the counter of an account for a step, replacing the counter of an older step
+   *
+   * @param accountName
+   *          the account to look up
+   * @param step
+   *          the current time step
+   * @return the counter
+   */
+  private StepCounter currentCounter(String accountName, long step) {
+    for (;;) {
+      StepCounter counter = counters.get(accountName);
+      // a thread that is a little late for a new step counts against the new step
+      if (counter != null && counter.step >= step) {
+        return counter;
+      }
+      StepCounter fresh = new StepCounter(step);
+      if (counter == null ? counters.putIfAbsent(accountName, fresh) == null : counters.replace(accountName, counter, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  /**
+   * removes the counters of past steps. Only the first caller of a new step does the sweeping
+   *
+   * @param step
+   *          the current time step
+   */
+  private void sweepIfStepChanged(long step) {
+    long sweptStep = lastSweptStep.get();
+    if (step <= sweptStep || !lastSweptStep.compareAndSet(sweptStep, step)) {
+      return;
+    }
+    int removed = 0;
+    for (Map.Entry<String, StepCounter> entry : counters.entrySet()) {
+      // only remove the counter that was looked at, not one that replaced it in the meantime
+      if (entry.getValue().step < step && counters.remove(entry.getKey(), entry.getValue())) {
+        removed++;
+      }
+    }
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("swept %s counters of steps before %s", removed, step));
+    }
+  }
+}
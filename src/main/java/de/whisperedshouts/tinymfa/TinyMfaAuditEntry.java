@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+/**
+ * A single validation attempt, waiting to be written to MFA_VALIDATION_ATTEMPTS
+ * by the {@link TinyMfaAuditWriter}.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditEntry {
+
+  /**
+   * when the attempt was made (milliseconds since 1970)
+   */
+  private final long accessTime;
+
+  /**
+   * the corrected timestamp the attempt was validated against
+   */
+  private final long cts;
+
+  /**
+   * the account that made the attempt
+   */
+  private final String accountName;
+
+  /**
+   * whether the account was enabled
+   */
+  private final boolean accountEnabled;
+
+  /**
+   * whether the validation succeeded
+   */
+  private final boolean succeeded;
+
+  /**
+   * creates a new entry
+   *
+   * @param accessTime
+   *          when the attempt was made (milliseconds since 1970)
+   * @param cts
+   *          the corrected timestamp the attempt was validated against
+   * @param accountName
+   *          the account that made the attempt
+   * @param accountEnabled
+   *          whether the account was enabled
+   * @param succeeded
+   *          whether the validation succeeded
+   */
+  public TinyMfaAuditEntry(long accessTime, long cts, String accountName, boolean accountEnabled, boolean succeeded) {
+    this.accessTime     = accessTime;
+    this.cts            = cts;
+    this.accountName    = accountName;
+    this.accountEnabled = accountEnabled;
+    this.succeeded      = succeeded;
+  }
+
+  /**
+   * @return when the attempt was made (milliseconds since 1970)
+   */
+  public long getAccessTime() {
+    return accessTime;
+  }
+
+  /**
+   * @return the corrected timestamp the attempt was validated against
+   */
+  public long getCts() {
+    return cts;
+  }
+
+  /**
+   * @return the account that made the attempt
+   */
+  public String getAccountName() {
+    return accountName;
+  }
+
+  /**
+   * @return whether the account was enabled
+   */
+  public boolean isAccountEnabled() {
+    return accountEnabled;
+  }
+
+  /**
+   * @return whether the validation succeeded
+   */
+  public boolean isSucceeded() {
+    return succeeded;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TinyMfaAuditEntry[accessTime=%s, cts=%s, accountName=%s, accountEnabled=%s, succeeded=%s]",
+        accessTime, cts, accountName, accountEnabled, succeeded);
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides which validation attempts are written to the audit table. Failures
+ * and attempts of disabled accounts are always written. Successes are handled
+ * according to the {@link SUCCESS_MODE}; while the audit writer is slower than
+ * the shedding threshold, successes are only counted in the hourly rollup.
+ * The rollup holds exactly the successes that have not become a row, so the
+ * rows of an account and hour plus its rollup are all of its successes.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditPolicy {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAuditPolicy.class);
+
+  /**
+   * the length of a rollup period (milliseconds)
+   */
+  public static final long ROLLUP_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * the length of a day in the daily table (milliseconds). Days start at midnight UTC
+   */
+  public static final long DAILY_PERIOD  = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * what happens to successful validations
+   */
+  public static enum SUCCESS_MODE {
+    /** every success is written */
+    ALL,
+    /** one out of sampleRate successes is written, the others are counted in the rollup */
+    SAMPLE,
+    /** the first success per account and hour is written, the others are counted in the rollup */
+    ROLLUP;
+
+    /**
+     * returns the mode for a setting value like "all", "sample" or "rollup"
+     * @param value the value of the plugin setting
+     * @return the matching mode, ALL if the value is unknown
+     */
+    public static SUCCESS_MODE fromSetting(String value) {
+      SUCCESS_MODE result = ALL;
+      if (value != null) {
+        for (SUCCESS_MODE mode : values()) {
+          if (mode.name().equalsIgnoreCase(value.trim())) {
+            result = mode;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaAuditPolicy INSTANCE = new TinyMfaAuditPolicy();
+
+  /**
+   * the rollup period each account has last been written a success row for
+   */
+  private final ConcurrentHashMap<String, Long> lastWrittenPeriod = new ConcurrentHashMap<>();
+
+  /**
+   * the rollup period lastWrittenPeriod has been swept for last
+   */
+  private final AtomicLong lastSweptPeriod = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * what happens to successful validations
+   */
+  private volatile SUCCESS_MODE successMode = SUCCESS_MODE.ALL;
+
+  /**
+   * one out of this many successes is written in SAMPLE mode
+   */
+  private volatile int sampleRate = 10;
+
+  /**
+   * successes are shed while the audit writer is slower than this (milliseconds). 0 disables shedding
+   */
+  private volatile long shedLatency = 0;
+
+  /**
+   * attempts written because they are security relevant
+   */
+  private final LongAdder alwaysWrittenCount = new LongAdder();
+
+  /**
+   * successes written as a row
+   */
+  private final LongAdder successesWrittenCount = new LongAdder();
+
+  /**
+   * successes only counted in the rollup, because of sampling or rollup mode
+   */
+  private final LongAdder successesRolledUpCount = new LongAdder();
+
+  /**
+   * successes only counted in the rollup, because the audit writer was too slow
+   */
+  private final LongAdder successesShedCount = new LongAdder();
+
+  /**
+   * @return the shared instance
+   */
+  public static TinyMfaAuditPolicy getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * applies mode, sample rate and shedding threshold
+   *
+   * @param successMode
+   *          what happens to successful validations. null is ignored
+   * @param sampleRate
+   *          one out of this many successes is written in SAMPLE mode. Values below 1 are ignored
+   * @param shedLatency
+   *          successes are shed while the audit writer is slower than this
+   *          (milliseconds). 0 disables shedding, negative values are ignored
+   */
+  public void configure(SUCCESS_MODE successMode, int sampleRate, long shedLatency) {
+    if (successMode != null) {
+      this.successMode = successMode;
+    }
+    if (sampleRate > 0) {
+      this.sampleRate = sampleRate;
+    }
+    if (shedLatency >= 0) {
+      this.shedLatency = shedLatency;
+    }
+  }
+
+  /**
+   * hands an attempt to the audit writer, or only counts it, as the policy says
+   *
+   * @param entry
+   *          the attempt to audit
+   * @param auditWriter
+   *          the writer to hand the attempt to
+   */
+  public void audit(TinyMfaAuditEntry entry, TinyMfaAuditWriter auditWriter) {
+    // every attempt is counted per day, whatever happens to its row
+    long day = entry.getAccessTime() - Math.floorMod(entry.getAccessTime(), DAILY_PERIOD);
+    auditWriter.countAttempt(entry.getAccountName(), day, entry.isSucceeded());
+
+    // failures and disabled accounts are what an auditor is looking for
+    if (!entry.isSucceeded() || !entry.isAccountEnabled()) {
+      alwaysWrittenCount.increment();
+      auditWriter.submit(entry);
+      return;
+    }
+
+    // a success is either written as a row or counted in the rollup, never both
+    long period = entry.getAccessTime() - Math.floorMod(entry.getAccessTime(), ROLLUP_PERIOD);
+    if (shedLatency > 0 && auditWriter.getFlushLatencyMillis() > shedLatency) {
+      successesShedCount.increment();
+      auditWriter.countSuccess(entry.getAccountName(), period);
+      if (_logger.isDebugEnabled()) {
+        _logger.debug(String.format("audit writer is slow, shedding success of %s", entry.getAccountName()));
+      }
+      return;
+    }
+
+    boolean write;
+    switch (successMode) {
+      case SAMPLE : write = ThreadLocalRandom.current().nextInt(sampleRate) == 0; break;
+      case ROLLUP : write = isFirstSuccessInPeriod(entry.getAccountName(), period); break;
+      default     : write = true; break;
+    }
+
+    if (write) {
+      successesWrittenCount.increment();
+      auditWriter.submit(entry);
+    } else {
+      successesRolledUpCount.increment();
+      auditWriter.countSuccess(entry.getAccountName(), period);
+    }
+  }
+
+  /**
+   * @return how many attempts have been written, rolled up and shed
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> result = new HashMap<>();
+    result.put("successMode", successMode.name());
+    result.put("alwaysWritten", alwaysWrittenCount.sum());
+    result.put("successesWritten", successesWrittenCount.sum());
+    result.put("successesRolledUp", successesRolledUpCount.sum());
+    result.put("successesShed", successesShedCount.sum());
+    return result;
+  }
+
+  /**
+   * remembers that an account has been written a success row for a period
+   *
+   * @param accountName
+   *          the account that succeeded
+   * @param period
+   *          the start of the current rollup period
+   * @return true if this is the first success of the account in this period
+   */
+  private boolean isFirstSuccessInPeriod(String accountName, long period) {
+    sweepIfPeriodChanged(period);
+    for (;;) {
+      Long written = lastWrittenPeriod.get(accountName);
+      if (written != null && written >= period) {
+        return false;
+      }
+      if (written == null ? lastWrittenPeriod.putIfAbsent(accountName, period) == null
+          : lastWrittenPeriod.replace(accountName, written, period)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * forgets accounts that have not succeeded in the current period. Only the
+   * first caller of a new period does the sweeping
+   *
+   * @param period
+   *          the start of the current rollup period
+   */
+  private void sweepIfPeriodChanged(long period) {
+    long sweptPeriod = lastSweptPeriod.get();
+    if (period <= sweptPeriod || !lastSweptPeriod.compareAndSet(sweptPeriod, period)) {
+      return;
+    }
+    for (Map.Entry<String, Long> entry : lastWrittenPeriod.entrySet()) {
+      if (entry.getValue() < period) {
+        lastWrittenPeriod.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
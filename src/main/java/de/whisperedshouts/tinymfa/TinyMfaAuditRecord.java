@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A validation attempt as read from MFA_VALIDATION_ATTEMPTS. Written to the
+ * client by the {@link de.whisperedshouts.tinymfa.util.TinyMfaJsonWriter}.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditRecord {
+
+  /**
+   * the ID of the row
+   */
+  private final long id;
+
+  /**
+   * when the attempt was made (milliseconds since 1970)
+   */
+  private final long accessTime;
+
+  /**
+   * the corrected timestamp the attempt was validated against
+   */
+  private final long cts;
+
+  /**
+   * the account that made the attempt
+   */
+  private final String accountName;
+
+  /**
+   * whether the account was enabled
+   */
+  private final boolean accountEnabled;
+
+  /**
+   * whether the validation succeeded
+   */
+  private final boolean succeeded;
+
+  /**
+   * creates a new record
+   *
+   * @param id
+   *          the ID of the row
+   * @param accessTime
+   *          when the attempt was made (milliseconds since 1970)
+   * @param cts
+   *          the corrected timestamp the attempt was validated against
+   * @param accountName
+   *          the account that made the attempt
+   * @param accountEnabled
+   *          whether the account was enabled
+   * @param succeeded
+   *          whether the validation succeeded
+   */
+  public TinyMfaAuditRecord(long id, long accessTime, long cts, String accountName, boolean accountEnabled, boolean succeeded) {
+    this.id             = id;
+    this.accessTime     = accessTime;
+    this.cts            = cts;
+    this.accountName    = accountName;
+    this.accountEnabled = accountEnabled;
+    this.succeeded      = succeeded;
+  }
+
+  /**
+   * reads a record from the current row of an audit query
+   *
+   * @param resultSet
+   *          a result set with the columns ID, ACCESS_TIME, CTS, ACCOUNT_NAME,
+   *          ACCOUNT_ENABLED and SUCCEEDED
+   * @return the record
+   * @throws SQLException
+   *           when the row could not be read
+   */
+  public static TinyMfaAuditRecord fromResultSet(ResultSet resultSet) throws SQLException {
+    return new TinyMfaAuditRecord(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3),
+        resultSet.getString(4), resultSet.getBoolean(5), resultSet.getBoolean(6));
+  }
+
+  /**
+   * @return the ID of the row
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return when the attempt was made (milliseconds since 1970)
+   */
+  public long getAccessTime() {
+    return accessTime;
+  }
+
+  /**
+   * @return the corrected timestamp the attempt was validated against
+   */
+  public long getCts() {
+    return cts;
+  }
+
+  /**
+   * @return the account that made the attempt
+   */
+  public String getAccountName() {
+    return accountName;
+  }
+
+  /**
+   * @return whether the account was enabled
+   */
+  public boolean isAccountEnabled() {
+    return accountEnabled;
+  }
+
+  /**
+   * @return whether the validation succeeded
+   */
+  public boolean isSucceeded() {
+    return succeeded;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TinyMfaAuditRecord[id=%s, accessTime=%s, cts=%s, accountName=%s, accountEnabled=%s, succeeded=%s]",
+        id, accessTime, cts, accountName, accountEnabled, succeeded);
+  }
+}
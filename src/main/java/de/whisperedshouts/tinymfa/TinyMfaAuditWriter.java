@@ -0,0 +1,849 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.QUERY_TYPE;
+import sailpoint.plugin.PluginBaseHelper;
+
+/**
+ * Writes validation attempts to MFA_VALIDATION_ATTEMPTS in the background. The
+ * login request only puts its attempt into a bounded queue; a daemon thread
+ * drains the queue and inserts the attempts with jdbc batches. A batch is
+ * written when it is full or when the flush interval has passed since its
+ * first attempt, whichever comes first. A batch that cannot be written is
+ * tried again up to {@link #WRITE_ATTEMPTS} times, waiting twice as long
+ * before every try; meanwhile the queue fills up. A batch that fails for good
+ * is logged row by row at ERROR level.
+ * <p>
+ * When the queue is full, the overflow policy decides: {@link OVERFLOW_POLICY#CALLER_RUNS}
+ * writes the attempt on the calling thread (the login waits, nothing is
+ * lost), {@link OVERFLOW_POLICY#DISCARD} drops it and counts it in the
+ * success rollup. Failures and attempts of disabled accounts are never
+ * dropped, they are written on the calling thread whatever the policy says.
+ * <p>
+ * The thread belongs to the plugin: {@link de.whisperedshouts.tinymfa.service.TinyMfaAuditWriterService}
+ * stops it when the plugin is reloaded, uninstalled or the server stops, so
+ * neither the thread nor the classes of the plugin outlive it.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditWriter {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAuditWriter.class);
+
+  /**
+   * the number of attempts per batch when no other size is configured
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /**
+   * how long an attempt may wait for its batch to fill up (milliseconds)
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  /**
+   * the number of attempts the queue holds when no other capacity is configured
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+  /**
+   * what happens to an attempt when the queue is full
+   */
+  public static enum OVERFLOW_POLICY {
+    CALLER_RUNS,
+    DISCARD;
+
+    /**
+     * returns the policy for a setting value like "callerRuns" or "discard"
+     * @param value the value of the plugin setting
+     * @return the matching policy, CALLER_RUNS if the value is unknown
+     */
+    public static OVERFLOW_POLICY fromSetting(String value) {
+      OVERFLOW_POLICY result = CALLER_RUNS;
+      if (value != null) {
+        String normalized = value.replace("_", "").trim();
+        for (OVERFLOW_POLICY policy : values()) {
+          if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+            result = policy;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * how often the success rollups are written (milliseconds)
+   */
+  public static final long ROLLUP_FLUSH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * how often the writer thread tries to write a batch before it gives up
+   */
+  public static final int WRITE_ATTEMPTS = 3;
+
+  /**
+   * how long the writer thread waits before it tries a failed batch again the first time (milliseconds)
+   */
+  private static final long RETRY_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+
+  /**
+   * how long the writer waits for an attempt before it counts as idle (milliseconds)
+   */
+  private static final long IDLE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  /**
+   * the shared instance
+   */
+  private static volatile TinyMfaAuditWriter instance;
+
+  /**
+   * the attempts waiting to be written
+   */
+  private final BlockingQueue<TinyMfaAuditEntry> queue;
+
+  /**
+   * the thread draining the queue
+   */
+  private final Thread writerThread;
+
+  /**
+   * the maximum number of attempts per batch
+   */
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * how long an attempt may wait for its batch to fill up (milliseconds)
+   */
+  private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+  /**
+   * what happens to an attempt when the queue is full
+   */
+  private volatile OVERFLOW_POLICY overflowPolicy = OVERFLOW_POLICY.CALLER_RUNS;
+
+  /**
+   * cleared by {@link #shutdown()}
+   */
+  private volatile boolean running = true;
+
+  /**
+   * attempts handed to the writer
+   */
+  private final LongAdder submittedCount = new LongAdder();
+
+  /**
+   * attempts written to the database
+   */
+  private final LongAdder writtenCount = new LongAdder();
+
+  /**
+   * attempts dropped because the queue was full
+   */
+  private final LongAdder discardedCount = new LongAdder();
+
+  /**
+   * attempts written by the calling thread because the queue was full
+   */
+  private final LongAdder callerRunsCount = new LongAdder();
+
+  /**
+   * attempts lost because their batch could not be written
+   */
+  private final LongAdder failedCount = new LongAdder();
+
+  /**
+   * batches that have been tried again after they failed
+   */
+  private final LongAdder retriedCount = new LongAdder();
+
+  /**
+   * the number of batches written
+   */
+  private final LongAdder flushCount = new LongAdder();
+
+  /**
+   * the time all flushes took together (nanoseconds)
+   */
+  private final LongAdder flushNanos = new LongAdder();
+
+  /**
+   * the time the last flush took (nanoseconds)
+   */
+  private final AtomicLong lastFlushNanos = new AtomicLong();
+
+  /**
+   * the time the slowest flush took (nanoseconds)
+   */
+  private final AtomicLong maximumFlushNanos = new AtomicLong();
+
+  /**
+   * the smoothed flush latency (nanoseconds). Recent flushes weigh most
+   */
+  private final AtomicLong smoothedFlushNanos = new AtomicLong();
+
+  /**
+   * successes that have not been written to the rollup table yet, by period and
+   * account. Counted with merge and taken with remove, both atomic per key, so
+   * a success counted during a flush is either taken by it or left for the next
+   */
+  private final ConcurrentHashMap<PendingKey, Long> pendingRollups = new ConcurrentHashMap<>();
+
+  /**
+   * attempts that have not been added to the daily table yet, by day and
+   * account: successes and failures. Counted and taken like the rollups
+   */
+  private final ConcurrentHashMap<PendingKey, long[]> pendingDaily = new ConcurrentHashMap<>();
+
+  /**
+   * the count of a single success, for the daily table
+   */
+  private static final long[] ONE_SUCCESS = { 1, 0 };
+
+  /**
+   * the count of a single failure, for the daily table
+   */
+  private static final long[] ONE_FAILURE = { 0, 1 };
+
+  /**
+   * when the rollups have been written last (milliseconds since 1970)
+   */
+  private volatile long lastRollupFlush = System.currentTimeMillis();
+
+  /**
+   * creates a new writer and starts its thread
+   *
+   * @param queueCapacity
+   *          the number of attempts the queue holds
+   */
+  TinyMfaAuditWriter(int queueCapacity) {
+    this.queue        = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    this.writerThread = new Thread(this::drain, "TinyMFA audit writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * returns the shared writer. It is created with the first call; the queue
+   * capacity cannot be changed afterwards
+   *
+   * @param queueCapacity
+   *          the number of attempts the queue holds. Values below 1 use the default
+   * @return the shared writer
+   */
+  public static TinyMfaAuditWriter getInstance(int queueCapacity) {
+    TinyMfaAuditWriter result = instance;
+    if (result == null) {
+      synchronized (TinyMfaAuditWriter.class) {
+        result = instance;
+        if (result == null) {
+          result   = new TinyMfaAuditWriter((queueCapacity > 0) ? queueCapacity : DEFAULT_QUEUE_CAPACITY);
+          instance = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * stops the shared writer and writes whatever is still queued or counted.
+   * Called when the plugin service terminates, i.e. when the server stops or
+   * the plugin is reloaded or uninstalled; the next {@link #getInstance(int)}
+   * creates a new writer
+   */
+  public static void shutdownInstance() {
+    TinyMfaAuditWriter stopped;
+    synchronized (TinyMfaAuditWriter.class) {
+      stopped  = instance;
+      instance = null;
+    }
+    if (stopped != null) {
+      stopped.shutdown();
+    }
+  }
+
+  /**
+   * @return the shared writer, or null if it has not been created yet
+   */
+  public static TinyMfaAuditWriter getInstanceIfCreated() {
+    return instance;
+  }
+
+  /**
+   * applies batch size, flush interval and overflow policy
+   *
+   * @param batchSize
+   *          the maximum number of attempts per batch. Values below 1 are ignored
+   * @param flushInterval
+   *          how long an attempt may wait for its batch to fill up (milliseconds). Values below 1 are ignored
+   * @param overflowPolicy
+   *          what happens to an attempt when the queue is full. null is ignored
+   */
+  public void configure(int batchSize, long flushInterval, OVERFLOW_POLICY overflowPolicy) {
+    if (batchSize > 0) {
+      this.batchSize = batchSize;
+    }
+    if (flushInterval > 0) {
+      this.flushInterval = flushInterval;
+    }
+    if (overflowPolicy != null) {
+      this.overflowPolicy = overflowPolicy;
+    }
+  }
+
+  /**
+   * hands an attempt to the writer. Returns immediately unless the queue is
+   * full and the attempt has to be written anyway, because the overflow policy
+   * is {@link OVERFLOW_POLICY#CALLER_RUNS} or the attempt is security relevant
+   *
+   * @param entry
+   *          the attempt to write
+   */
+  public void submit(TinyMfaAuditEntry entry) {
+    submittedCount.increment();
+    if (running && queue.offer(entry)) {
+      return;
+    }
+
+    if (overflowPolicy == OVERFLOW_POLICY.DISCARD && running && isDiscardable(entry)) {
+      discardedCount.increment();
+      rollUp(entry);
+      long discarded = discardedCount.sum();
+      // one warning per thousand, a full queue would flood the log otherwise
+      if (discarded % 1000 == 1) {
+        _logger.warn(String.format("audit queue is full, %s attempts discarded so far", discarded));
+      }
+    } else {
+      callerRunsCount.increment();
+      // the login does not wait for a retry
+      List<TinyMfaAuditEntry> entries = Collections.singletonList(entry);
+      if (!write(entries)) {
+        giveUp(entries);
+      }
+    }
+  }
+
+  /**
+   * @param entry
+   *          an attempt
+   * @return true if the attempt may be dropped on overflow. Only successes of
+   *         enabled accounts may, failures and disabled accounts are what an
+   *         auditor is looking for
+   */
+  private static boolean isDiscardable(TinyMfaAuditEntry entry) {
+    return entry.isSucceeded() && entry.isAccountEnabled();
+  }
+
+  /**
+   * counts a success that does not become a row in the rollup table instead
+   *
+   * @param entry
+   *          a success of an enabled account
+   */
+  private void rollUp(TinyMfaAuditEntry entry) {
+    countSuccess(entry.getAccountName(), entry.getAccessTime() - Math.floorMod(entry.getAccessTime(), TinyMfaAuditPolicy.ROLLUP_PERIOD));
+  }
+
+  /**
+   * counts a success for the rollup table. The counts are written about once
+   * per {@link #ROLLUP_FLUSH_INTERVAL}
+   *
+   * @param accountName
+   *          the account that succeeded
+   * @param period
+   *          the start of the rollup period the success belongs to
+   */
+  public void countSuccess(String accountName, long period) {
+    pendingRollups.merge(new PendingKey(period, accountName), 1L, Long::sum);
+  }
+
+  /**
+   * counts an attempt for the daily table. The counts are written about once
+   * per {@link #ROLLUP_FLUSH_INTERVAL}
+   *
+   * @param accountName
+   *          the account of the attempt
+   * @param day
+   *          the start of the day (UTC) the attempt belongs to
+   * @param succeeded
+   *          whether the attempt succeeded
+   */
+  public void countAttempt(String accountName, long day, boolean succeeded) {
+    pendingDaily.merge(new PendingKey(day, accountName), succeeded ? ONE_SUCCESS : ONE_FAILURE, TinyMfaAuditWriter::addCounts);
+  }
+
+  /**
+   * adds two daily counts. The counts in the pending map are never changed,
+   * they are replaced
+   *
+   * @param counts
+   *          successes and failures
+   * @param more
+   *          successes and failures to add
+   * @return the sum of both
+   */
+  private static long[] addCounts(long[] counts, long[] more) {
+    return new long[] { counts[0] + more[0], counts[1] + more[1] };
+  }
+
+  /**
+   * @return the smoothed time a flush takes (milliseconds). Decays while the
+   *         writer has nothing to write
+   */
+  public long getFlushLatencyMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(smoothedFlushNanos.get());
+  }
+
+  /**
+   * stops the writer thread and writes whatever is still queued
+   */
+  public void shutdown() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    writerThread.interrupt();
+    try {
+      writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    List<TinyMfaAuditEntry> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    for (int from = 0; from < remaining.size(); from += batchSize) {
+      // the server is going down, there is no time to wait for a retry
+      List<TinyMfaAuditEntry> entries = remaining.subList(from, Math.min(from + batchSize, remaining.size()));
+      if (!write(entries)) {
+        giveUp(entries);
+      }
+    }
+    writeRollups();
+    writeDailyCounts();
+    _logger.info(String.format("audit writer stopped, %s attempts written on shutdown", remaining.size()));
+  }
+
+  /**
+   * @return queue depth, throughput and flush latency of the writer
+   */
+  public Map<String, Object> getStatistics() {
+    long flushes = flushCount.sum();
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("queueDepth", queue.size());
+    result.put("queueCapacity", queue.size() + queue.remainingCapacity());
+    result.put("submitted", submittedCount.sum());
+    result.put("written", writtenCount.sum());
+    result.put("discarded", discardedCount.sum());
+    result.put("writtenByCaller", callerRunsCount.sum());
+    result.put("failed", failedCount.sum());
+    result.put("retried", retriedCount.sum());
+    result.put("flushes", flushes);
+    result.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get()));
+    result.put("maximumFlushMillis", TimeUnit.NANOSECONDS.toMillis(maximumFlushNanos.get()));
+    result.put("averageFlushMillis", (flushes == 0) ? 0.0 : flushNanos.sum() / 1e6 / flushes);
+    result.put("smoothedFlushMillis", getFlushLatencyMillis());
+    return result;
+  }
+
+  /**
+   * the loop of the writer thread
+   */
+  private void drain() {
+    List<TinyMfaAuditEntry> batch = new ArrayList<>();
+    while (running) {
+      try {
+        TinyMfaAuditEntry first = queue.poll(IDLE_INTERVAL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          // an idle writer counts as a fast flush. Otherwise the last slow flush would
+          // keep the estimate up, and successes shed, until the next failure is written
+          smoothedFlushNanos.accumulateAndGet(0, TinyMfaAuditWriter::smooth);
+        } else {
+          batch.add(first);
+
+          // wait for the batch to fill up, but not longer than the flush interval
+          long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+          while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+              continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            TinyMfaAuditEntry next = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        // shutdown() writes the rest of the queue
+      }
+
+      if (!batch.isEmpty()) {
+        writeWithRetry(batch);
+        batch.clear();
+      }
+      if (System.currentTimeMillis() - lastRollupFlush >= ROLLUP_FLUSH_INTERVAL) {
+        writeRollups();
+        writeDailyCounts();
+      }
+    }
+  }
+
+  /**
+   * writes a batch on the writer thread, trying again with a growing pause
+   * when it fails. Gives up after {@link #WRITE_ATTEMPTS} tries, or when the
+   * writer is shut down while it waits
+   *
+   * @param entries
+   *          the attempts to insert
+   */
+  private void writeWithRetry(List<TinyMfaAuditEntry> entries) {
+    long backoff = RETRY_BACKOFF;
+    for (int attempt = 1; !write(entries); attempt++) {
+      if (attempt >= WRITE_ATTEMPTS || !running) {
+        giveUp(entries);
+        return;
+      }
+      _logger.warn(String.format("writing %s validation attempts failed %s times, trying again in %s ms", entries.size(), attempt, backoff));
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        // shutdown() does not wait for the retries
+        giveUp(entries);
+        return;
+      }
+      retriedCount.increment();
+      backoff *= 2;
+    }
+  }
+
+  /**
+   * logs the attempts of a batch that could not be written, so they can still
+   * be found in the log. The successes among them are counted in the rollup
+   *
+   * @param entries
+   *          the attempts that are lost for the audit table
+   */
+  private void giveUp(List<TinyMfaAuditEntry> entries) {
+    failedCount.add(entries.size());
+    _logger.error(String.format("giving up on %s validation attempts, they are not in the audit table:", entries.size()));
+    for (TinyMfaAuditEntry entry : entries) {
+      _logger.error(entry);
+      if (isDiscardable(entry)) {
+        rollUp(entry);
+      }
+    }
+  }
+
+  /**
+   * inserts attempts with a single jdbc batch and a single commit
+   *
+   * @param entries
+   *          the attempts to insert
+   * @return true if the attempts have been committed
+   */
+  private boolean write(List<TinyMfaAuditEntry> entries) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(entries %s)", "write", entries.size()));
+    }
+    long start                      = System.nanoTime();
+    Connection connection           = null;
+    PreparedStatement prepStatement = null;
+    Boolean autoCommit              = null;
+    boolean result                  = false;
+    try {
+      connection    = PluginBaseHelper.getConnection();
+      autoCommit    = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.AUDIT_VALIDATION_ATTEMPT));
+      for (TinyMfaAuditEntry entry : entries) {
+        prepStatement.setLong(1, entry.getAccessTime());
+        prepStatement.setLong(2, entry.getCts());
+        prepStatement.setString(3, entry.getAccountName());
+        prepStatement.setBoolean(4, entry.isAccountEnabled());
+        prepStatement.setBoolean(5, entry.isSucceeded());
+        prepStatement.addBatch();
+      }
+      prepStatement.executeBatch();
+      connection.commit();
+      writtenCount.add(entries.size());
+      result = true;
+    } catch (Exception e) {
+      // whatever goes wrong, the writer thread has to survive it
+      _logger.error(String.format("could not write %s validation attempts: %s", entries.size(), e.getMessage()));
+      if (connection != null) {
+        try {
+          connection.rollback();
+        } catch (SQLException rollbackException) {
+          _logger.error(rollbackException.getMessage());
+        }
+      }
+    } finally {
+      if(prepStatement != null) {
+        try {
+          prepStatement.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+      if (connection != null) {
+        try {
+          if (autoCommit != null) {
+            connection.setAutoCommit(autoCommit);
+          }
+          connection.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+    }
+
+    long elapsed = System.nanoTime() - start;
+    flushCount.increment();
+    flushNanos.add(elapsed);
+    lastFlushNanos.set(elapsed);
+    maximumFlushNanos.accumulateAndGet(elapsed, Math::max);
+    smoothedFlushNanos.accumulateAndGet(elapsed, TinyMfaAuditWriter::smooth);
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s, took %s ms)", "write", result, TimeUnit.NANOSECONDS.toMillis(elapsed)));
+    }
+    return result;
+  }
+
+  /**
+   * adds a flush to the smoothed flush latency. Recent flushes weigh most
+   *
+   * @param smoothed
+   *          the smoothed latency so far (nanoseconds)
+   * @param latest
+   *          the latency of the latest flush (nanoseconds)
+   * @return the new smoothed latency (nanoseconds)
+   */
+  private static long smooth(long smoothed, long latest) {
+    return (smoothed * 4 + latest) / 5;
+  }
+
+  /**
+   * adds the pending success counts to the rollup table with a single jdbc
+   * batch and a single commit. Every count is removed from the pending map as
+   * it is added to the batch; successes counted meanwhile start a new count.
+   * When the batch fails, the counts are put back and written with the next
+   * flush
+   */
+  private void writeRollups() {
+    lastRollupFlush = System.currentTimeMillis();
+    if (pendingRollups.isEmpty()) {
+      return;
+    }
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s()", "writeRollups"));
+    }
+
+    // the counts taken from the pending map, to put them back on failure
+    Map<PendingKey, Long> taken     = new HashMap<>();
+    Connection connection           = null;
+    PreparedStatement prepStatement = null;
+    Boolean autoCommit              = null;
+    int rows                        = 0;
+    try {
+      connection    = PluginBaseHelper.getConnection();
+      autoCommit    = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.INCREMENT_SUCCESS_ROLLUP));
+      for (PendingKey key : pendingRollups.keySet()) {
+        Long successes = pendingRollups.remove(key);
+        if (successes == null) {
+          continue;
+        }
+        taken.put(key, successes);
+        prepStatement.setString(1, key.accountName);
+        prepStatement.setLong(2, key.start);
+        prepStatement.setLong(3, successes);
+        prepStatement.addBatch();
+        rows++;
+      }
+      if (rows > 0) {
+        prepStatement.executeBatch();
+      }
+      connection.commit();
+    } catch (Exception e) {
+      // nothing has been committed, the next flush tries again
+      _logger.error(String.format("could not write %s success rollups, keeping them for the next flush: %s", rows, e.getMessage()));
+      rollback(connection);
+      for (Map.Entry<PendingKey, Long> count : taken.entrySet()) {
+        pendingRollups.merge(count.getKey(), count.getValue(), Long::sum);
+      }
+    } finally {
+      close(connection, prepStatement, autoCommit);
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (rows: %s)", "writeRollups", rows));
+    }
+  }
+
+  /**
+   * adds the pending attempt counts to the daily table with a single jdbc
+   * batch and a single commit. Every count is removed from the pending map as
+   * it is added to the batch; attempts counted meanwhile start a new count.
+   * When the batch fails, the counts are put back and written with the next
+   * flush
+   */
+  private void writeDailyCounts() {
+    if (pendingDaily.isEmpty()) {
+      return;
+    }
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s()", "writeDailyCounts"));
+    }
+
+    // the counts taken from the pending map, to put them back on failure
+    Map<PendingKey, long[]> taken   = new HashMap<>();
+    Connection connection           = null;
+    PreparedStatement prepStatement = null;
+    Boolean autoCommit              = null;
+    int rows                        = 0;
+    try {
+      connection    = PluginBaseHelper.getConnection();
+      autoCommit    = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.INCREMENT_AUDIT_DAILY));
+      for (PendingKey key : pendingDaily.keySet()) {
+        long[] counts = pendingDaily.remove(key);
+        if (counts == null) {
+          continue;
+        }
+        taken.put(key, counts);
+        prepStatement.setString(1, key.accountName);
+        prepStatement.setLong(2, key.start);
+        prepStatement.setLong(3, counts[0]);
+        prepStatement.setLong(4, counts[1]);
+        prepStatement.addBatch();
+        rows++;
+      }
+      if (rows > 0) {
+        prepStatement.executeBatch();
+      }
+      connection.commit();
+    } catch (Exception e) {
+      // nothing has been committed, the next flush tries again
+      _logger.error(String.format("could not write %s daily counts, keeping them for the next flush: %s", rows, e.getMessage()));
+      rollback(connection);
+      for (Map.Entry<PendingKey, long[]> count : taken.entrySet()) {
+        pendingDaily.merge(count.getKey(), count.getValue(), TinyMfaAuditWriter::addCounts);
+      }
+    } finally {
+      close(connection, prepStatement, autoCommit);
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (rows: %s)", "writeDailyCounts", rows));
+    }
+  }
+
+  /**
+   * rolls back what a failed flush has written
+   *
+   * @param connection
+   *          the connection of the flush, may be null
+   */
+  private static void rollback(Connection connection) {
+    if (connection != null) {
+      try {
+        connection.rollback();
+      } catch (SQLException e) {
+        _logger.error(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * closes statement and connection of a flush, restoring the auto commit mode of the connection
+   *
+   * @param connection
+   *          the connection of the flush, may be null
+   * @param prepStatement
+   *          the statement of the flush, may be null
+   * @param autoCommit
+   *          the auto commit mode the connection had, null if it has not been changed
+   */
+  private static void close(Connection connection, PreparedStatement prepStatement, Boolean autoCommit) {
+    if(prepStatement != null) {
+      try {
+        prepStatement.close();
+      } catch (SQLException e) {
+        _logger.error(e.getMessage());
+      }
+    }
+    if (connection != null) {
+      try {
+        if (autoCommit != null) {
+          connection.setAutoCommit(autoCommit);
+        }
+        connection.close();
+      } catch (SQLException e) {
+        _logger.error(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * a pending count: the period or day it belongs to and its account
+   */
+  private static final class PendingKey {
+
+    /**
+     * the start of the period or day (milliseconds since 1970)
+     */
+    private final long start;
+
+    /**
+     * the account the count belongs to
+     */
+    private final String accountName;
+
+    PendingKey(long start, String accountName) {
+      this.start       = start;
+      this.accountName = accountName;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof PendingKey)) {
+        return false;
+      }
+      PendingKey key = (PendingKey) other;
+      return start == key.start && accountName.equals(key.accountName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(start) + accountName.hashCode();
+    }
+  }
+}
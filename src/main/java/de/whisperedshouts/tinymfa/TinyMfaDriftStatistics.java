@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts on which step offset successful validations matched. This tells
+ * operators how far the clocks of their users' devices drift.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaDriftStatistics {
+
+  /**
+   * the largest validation window that can be configured
+   */
+  public static final int MAXIMUM_WINDOW = 10;
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaDriftStatistics INSTANCE = new TinyMfaDriftStatistics();
+
+  /**
+   * one counter per offset, from -MAXIMUM_WINDOW to +MAXIMUM_WINDOW
+   */
+  private final AtomicLongArray matchesPerOffset = new AtomicLongArray(2 * MAXIMUM_WINDOW + 1);
+
+  /**
+   * @return the shared instance
+   */
+  public static TinyMfaDriftStatistics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * records a successful validation
+   *
+   * @param offset
+   *          the step offset the token matched on
+   */
+  public void record(int offset) {
+    if (offset >= -MAXIMUM_WINDOW && offset <= MAXIMUM_WINDOW) {
+      matchesPerOffset.incrementAndGet(offset + MAXIMUM_WINDOW);
+    }
+  }
+
+  /**
+   * @return the number of matches per offset. Offsets without matches are left out
+   */
+  public Map<Integer, Long> getMatchesPerOffset() {
+    Map<Integer, Long> result = new TreeMap<>();
+    for (int i = 0; i < matchesPerOffset.length(); i++) {
+      long matches = matchesPerOffset.get(i);
+      if (matches > 0) {
+        result.put(i - MAXIMUM_WINDOW, matches);
+      }
+    }
+    return result;
+  }
+}
@@ -3,16 +3,14 @@
  */
 package de.whisperedshouts.tinymfa;
 
-import java.security.InvalidKeyException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
 import org.apache.commons.codec.binary.Base32;
 import org.apache.log4j.Logger;
 
@@ -44,35 +42,192 @@ public class TinyMfaImplementation {
    * this is the algorithm that is used to generate the rfc2104hmac hexstring
    */
   public static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
-  
+
+  /**
+   * the hash function underneath the rfc2104hmac
+   */
+  public static final String SHA1_ALGORITHM = "SHA-1";
+
+  /**
+   * the block size of SHA-1, as used for the inner and outer hmac pads
+   */
+  public static final int HMAC_BLOCK_SIZE = 64;
+
+  /**
+   * the length of a SHA-1 digest (and thus of the rfc2104hmac)
+   */
+  public static final int HMAC_LENGTH = 20;
+
+  /**
+   * returned by {@link #findMatchingStepOffset(long, int, int, TinyMfaKeyHandle, int)} when no step matched
+   */
+  public static final int NO_MATCHING_STEP = Integer.MIN_VALUE;
+
+  /**
+   * position of the hmac pad inside the scratch buffer
+   */
+  private static final int SCRATCH_PAD_OFFSET = 0;
+
+  /**
+   * position of the 8 byte message inside the scratch buffer
+   */
+  private static final int SCRATCH_MESSAGE_OFFSET = SCRATCH_PAD_OFFSET + HMAC_BLOCK_SIZE;
+
+  /**
+   * position of the digest inside the scratch buffer
+   */
+  private static final int SCRATCH_DIGEST_OFFSET = SCRATCH_MESSAGE_OFFSET + 8;
+
+  /**
+   * the minimum size of a scratch buffer passed to {@link #computeToken(long, byte[], byte[])}
+   */
+  public static final int SCRATCH_SIZE = SCRATCH_DIGEST_OFFSET + HMAC_LENGTH;
+
+  /**
+   * one SHA-1 digest per thread. MessageDigest objects are not thread safe
+   */
+  private static final ThreadLocal<MessageDigest> SHA1_DIGESTS = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(SHA1_ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        // every java platform is required to support SHA-1
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+  };
+
+  /**
+   * one scratch buffer per thread, used when the caller does not supply one
+   */
+  private static final ThreadLocal<byte[]> SCRATCH_BUFFERS = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SCRATCH_SIZE];
+    }
+  };
+
   /**
-   * Calculates the hmac hash and returns its byteArray representation
+   * computes the token for a time step and a decoded key. This is the allocation
+   * free path: the rfc2104hmac is built from a thread local SHA-1 digest and the
+   * supplied scratch buffer, so repeated calls produce no garbage. For the same
+   * reason, this method does not log.
    * 
-   * @param data
-   *          the message to hash (usually a timestamp)
+   * @param step
+   *          the time step to calculate the token for
    * @param key
-   *          the secretKey to use
-   * @return the byteArray representation of the calculated hmac
-   * @throws SignatureException
-   * @throws NoSuchAlgorithmException
-   * @throws InvalidKeyException
-   */
-  private static byte[] calculateRFC2104HMAC(byte[] data, byte[] key)
-      throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
-    if (_logger.isTraceEnabled()) {
-      _logger.trace(String.format("ENTERING method %s(data %s, key %s)", "calculateRFC2104HMAC", data, key));
-    }
-    byte[] result = null;
-    SecretKeySpec signingKey = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
-    Mac messageAuthCode      = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-    
-    messageAuthCode.init(signingKey);
-    result = messageAuthCode.doFinal(data);
-
-    if (_logger.isTraceEnabled()) {
-      _logger.trace(String.format("LEAVING method %s (returns: %s)", "calculateRFC2104HMAC", result));
+   *          the decoded secretKey
+   * @param scratch
+   *          a buffer of at least {@link #SCRATCH_SIZE} bytes to work in. When
+   *          null or too small, a thread local buffer is used
+   * @return the token for this step and key
+   */
+  public static int computeToken(long step, byte[] key, byte[] scratch) {
+    byte[] buffer      = (scratch != null && scratch.length >= SCRATCH_SIZE) ? scratch : SCRATCH_BUFFERS.get();
+    MessageDigest sha1 = SHA1_DIGESTS.get();
+
+    try {
+      // rfc2104: keys longer than the block size are hashed first
+      if (key.length > HMAC_BLOCK_SIZE) {
+        sha1.update(key, 0, key.length);
+        sha1.digest(buffer, SCRATCH_PAD_OFFSET, HMAC_LENGTH);
+        Arrays.fill(buffer, SCRATCH_PAD_OFFSET + HMAC_LENGTH, SCRATCH_PAD_OFFSET + HMAC_BLOCK_SIZE, (byte) 0);
+      } else {
+        System.arraycopy(key, 0, buffer, SCRATCH_PAD_OFFSET, key.length);
+        Arrays.fill(buffer, SCRATCH_PAD_OFFSET + key.length, SCRATCH_PAD_OFFSET + HMAC_BLOCK_SIZE, (byte) 0);
+      }
+    } catch (DigestException e) {
+      // cannot happen, the scratch buffer is always big enough
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return computePaddedToken(step, buffer, sha1);
+  }
+
+  /**
+   * computes the token for a time step, reading the key straight from the
+   * secret store. The key is never copied to the heap, apart from the hmac pad
+   * in the scratch buffer, which is zeroized right after use. Like
+   * {@link #computeToken(long, byte[], byte[])}, this method neither allocates
+   * nor logs. The caller has to make sure the handle is retained.
+   * 
+   * @param step
+   *          the time step to calculate the token for
+   * @param keyHandle
+   *          the key material of the account
+   * @param scratch
+   *          a buffer of at least {@link #SCRATCH_SIZE} bytes to work in. When
+   *          null or too small, a thread local buffer is used
+   * @return the token for this step and key
+   */
+  static int computeToken(long step, TinyMfaKeyHandle keyHandle, byte[] scratch) {
+    byte[] buffer     = (scratch != null && scratch.length >= SCRATCH_SIZE) ? scratch : SCRATCH_BUFFERS.get();
+    int slot          = keyHandle.getSlot();
+    int keyLength     = keyHandle.getKeyLength();
+    ByteBuffer chunk  = TinyMfaSecretStore.getInstance().chunkOf(slot);
+    int position      = TinyMfaSecretStore.positionOf(slot);
+
+    // slots are zero padded to the block size already
+    for (int i = 0; i < HMAC_BLOCK_SIZE; i++) {
+      buffer[SCRATCH_PAD_OFFSET + i] = (i < keyLength) ? chunk.get(position + i) : 0;
+    }
+    return computePaddedToken(step, buffer, SHA1_DIGESTS.get());
+  }
+
+  /**
+   * computes the rfc2104hmac and the token, once the pad region of the scratch
+   * buffer holds the zero padded key. The pad region is zeroized afterwards
+   * 
+   * @param step
+   *          the time step to calculate the token for
+   * @param buffer
+   *          the scratch buffer
+   * @param sha1
+   *          the digest to use
+   * @return the token for this step and key
+   */
+  private static int computePaddedToken(long step, byte[] buffer, MessageDigest sha1) {
+    try {
+      // the message is the big endian representation of the step
+      long value = step;
+      for (int i = 8; i-- > 0; value >>>= 8) {
+        buffer[SCRATCH_MESSAGE_OFFSET + i] = (byte) value;
+      }
+
+      // inner hash: H((K ^ ipad) || message)
+      xorPad(buffer, (byte) 0x36);
+      sha1.update(buffer, SCRATCH_PAD_OFFSET, HMAC_BLOCK_SIZE);
+      sha1.update(buffer, SCRATCH_MESSAGE_OFFSET, 8);
+      sha1.digest(buffer, SCRATCH_DIGEST_OFFSET, HMAC_LENGTH);
+
+      // outer hash: H((K ^ opad) || inner hash). Xor'ing with ipad ^ opad turns the one pad into the other
+      xorPad(buffer, (byte) (0x36 ^ 0x5c));
+      sha1.update(buffer, SCRATCH_PAD_OFFSET, HMAC_BLOCK_SIZE);
+      sha1.update(buffer, SCRATCH_DIGEST_OFFSET, HMAC_LENGTH);
+      sha1.digest(buffer, SCRATCH_DIGEST_OFFSET, HMAC_LENGTH);
+    } catch (DigestException e) {
+      // cannot happen, the scratch buffer is always big enough
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      // do not leave key derived material lying around
+      Arrays.fill(buffer, SCRATCH_PAD_OFFSET, SCRATCH_PAD_OFFSET + HMAC_BLOCK_SIZE, (byte) 0);
+    }
+
+    return dynamicTruncation(buffer, SCRATCH_DIGEST_OFFSET);
+  }
+
+  /**
+   * xor's the pad region of the scratch buffer with a pad value
+   * 
+   * @param buffer
+   *          the scratch buffer
+   * @param padValue
+   *          the value to xor every byte of the pad with
+   */
+  private static void xorPad(byte[] buffer, byte padValue) {
+    for (int i = 0; i < HMAC_BLOCK_SIZE; i++) {
+      buffer[SCRATCH_PAD_OFFSET + i] ^= padValue;
     }
-    return result;
   }
 
   /**
@@ -118,46 +273,44 @@ public class TinyMfaImplementation {
     } else if (_logger.isDebugEnabled()) {
       _logger.debug(String.format("ENTERING method %s(message %s, base32SecretKey %s)", "generateValidToken", message, "***"));
     }
-    int token           = 0;
-    byte[] keyBytes     = null;
-    byte[] messageBytes = null;
-    // let's process
-    try {
-      // the key is base32 encoded
-      keyBytes = new Base32().decode(base32SecretKey);
-      // get an 8byte array derived from the message
-      messageBytes = TinyMfaImplementation.longToByteArray(message);
-      // generate the rfc2104hmac String out of timestamp and key
-      byte[] rfc2104hmac = TinyMfaImplementation.calculateRFC2104HMAC(messageBytes, keyBytes);
-
-      // get the decimal representation of the last byte
-      // this will be used as a offset. i.E if the last byte was 4 (as decimal),
-      // we will derive the dynamic trunacted result, starting at the 4th index of the byte array
-      int offset = rfc2104hmac[(rfc2104hmac.length - 1)] & 0xF;
-      if (_logger.isTraceEnabled()) {
-        _logger.trace(String.format("using offset %d for dynamic truncation", (int) offset));
-      }
-      // probably int is too small (since there is no unsigned integer)
-      // therefore, a long variable is used
-      long dynamicTruncatedResult = 0;
-      for (int i = 0; i < DYNAMIC_TRUNCATION_WIDTH; ++i) {
-        // shift 8bit to the left to make room for the next byte
-        dynamicTruncatedResult <<= 8;
-        // perform a bitwise inclusive OR on the next offset
-        // this adds the next digit to the dynamic truncated result
-        dynamicTruncatedResult |= (rfc2104hmac[offset + i] & 0xFF);
-      }
-
-      // setting the most significant bit to 0
-      dynamicTruncatedResult &= 0x7FFFFFFF;
-      // making sure we get the right amount of numbers
-      dynamicTruncatedResult %= 1000000;
+    // the key is base32 encoded
+    byte[] keyBytes = new Base32().decode(base32SecretKey);
+    if (keyBytes == null || keyBytes.length == 0) {
+      throw new Exception("no valid secretKey supplied");
+    }
+    int token       = TinyMfaImplementation.computeToken(message, keyBytes, null);
 
-      token = (int) dynamicTruncatedResult;
+    if(_logger.isTraceEnabled()) {
+      _logger.trace(String.format("LEAVING method %s (returns: %s)", "generateValidToken", token));
+    } else if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "generateValidToken", "***"));
+    }
+    return token;
+  }
 
-    } catch (InvalidKeyException | SignatureException | NoSuchAlgorithmException e) {
-      _logger.error(e.getMessage(), e);
-      throw new Exception(e.getMessage());
+  /**
+   * generates a valid token for a timestamp, using the precomputed key material
+   * of an account. No base32 decoding happens on this path
+   * 
+   * @param message
+   *          the timestamp to use when calculating the token
+   * @param keyHandle
+   *          the cached key material of the account
+   * @return the current valid token for this key
+   * @throws IllegalStateException when the key material has been released
+   */
+  public static int generateValidToken(long message, TinyMfaKeyHandle keyHandle) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(message %s, keyHandle %s)", "generateValidToken", message, keyHandle));
+    }
+    if (!keyHandle.retain()) {
+      throw new IllegalStateException("key material of account " + keyHandle.getAccountName() + " has been released");
+    }
+    int token;
+    try {
+      token = TinyMfaImplementation.computeToken(message, keyHandle, null);
+    } finally {
+      keyHandle.release();
     }
 
     if(_logger.isTraceEnabled()) {
@@ -169,50 +322,132 @@ public class TinyMfaImplementation {
   }
 
   /**
-   * returns a message based on a "corrected timestamp" This method will get the
-   * current system time (Milliseconds since 1970), then remove the seconds
-   * elapsed since the last half minute (i.E. 34 becomes 30). Last, we divide this by
-   * 30.
+   * checks a token against all steps within a window around the given step. The
+   * candidates are checked in the order 0, -1, +1, -2, +2, ... and the search
+   * stops with the first match. All candidates are computed from the same
+   * key and the same scratch buffer
    * 
-   * @return the message
+   * @param step
+   *          the current time step
+   * @param window
+   *          how many steps to accept before and after the current step
+   * @param keyHandle
+   *          the cached key material of the account
+   * @param token
+   *          the token to look for
+   * @return the offset of the matching step relative to the current step, or
+   *         {@link #NO_MATCHING_STEP} if no step within the window matches
    */
-  public static long getValidMessageBySystemTimestamp() {
+  public static int findMatchingStepOffset(long step, int window, TinyMfaKeyHandle keyHandle, int token) {
+    return findMatchingStepOffset(step, window, 0, keyHandle, token);
+  }
+
+  /**
+   * checks a token against all steps within a window around the given step.
+   * The preferred offset (usually the one the account matched on last time) is
+   * checked first, then the remaining candidates in the order 0, -1, +1, -2,
+   * +2, ... The search stops with the first match. All candidates are computed
+   * from the same stored key and the same scratch buffer
+   * 
+   * @param step
+   *          the current time step
+   * @param window
+   *          how many steps to accept before and after the current step
+   * @param preferredOffset
+   *          the offset to check first. Ignored if it lies outside the window
+   * @param keyHandle
+   *          the cached key material of the account
+   * @param token
+   *          the token to look for
+   * @return the offset of the matching step relative to the current step, or
+   *         {@link #NO_MATCHING_STEP} if no step within the window matches
+   * @throws IllegalStateException when the key material has been released
+   */
+  public static int findMatchingStepOffset(long step, int window, int preferredOffset, TinyMfaKeyHandle keyHandle, int token) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s()", "getValidMessageBySystemTimestamp"));
+      _logger.debug(String.format("ENTERING method %s(step %s, window %s, preferredOffset %s, keyHandle %s, token %s)", "findMatchingStepOffset", step, window, preferredOffset, keyHandle, "***"));
+    }
+    int result     = NO_MATCHING_STEP;
+    byte[] scratch = SCRATCH_BUFFERS.get();
+
+    // keep the slot from being zeroized while we are reading it
+    if (!keyHandle.retain()) {
+      throw new IllegalStateException("key material of account " + keyHandle.getAccountName() + " has been released");
+    }
+    try {
+      if (Math.abs(preferredOffset) <= window && computeToken(step + preferredOffset, keyHandle, scratch) == token) {
+        result = preferredOffset;
+      }
+
+      for (int distance = 0; distance <= window && result == NO_MATCHING_STEP; distance++) {
+        if (-distance != preferredOffset && computeToken(step - distance, keyHandle, scratch) == token) {
+          result = -distance;
+        } else if (distance != 0 && distance != preferredOffset && computeToken(step + distance, keyHandle, scratch) == token) {
+          result = distance;
+        }
+      }
+    } finally {
+      keyHandle.release();
     }
-    long systemTime = System.currentTimeMillis();
-    long message    = systemTime - (systemTime % 30);
-    message         = (long) Math.floor(message / TimeUnit.SECONDS.toMillis(30));
 
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getValidMessageBySystemTimestamp", message));
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "findMatchingStepOffset", result));
     }
-    return message;
+    return result;
   }
 
   /**
-   * converts a long to a byteArray.
+   * performs the dynamic truncation of a hmac result as defined in rfc4226
    * 
-   * @param message
-   *          the long to convert to a byteArray
-   * @return the byteArray according to specification
+   * @param rfc2104hmac
+   *          the array holding the calculated hmac
+   * @param hmacOffset
+   *          where the hmac starts in its array
+   * @return the 6 digit token
    */
-  private static byte[] longToByteArray(long message) {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(message %s)", "longToByteArray", message));
+  private static int dynamicTruncation(byte[] rfc2104hmac, int hmacOffset) {
+    // get the decimal representation of the last byte
+    // this will be used as a offset. i.E if the last byte was 4 (as decimal),
+    // we will derive the dynamic trunacted result, starting at the 4th index of the byte array
+    int offset = hmacOffset + (rfc2104hmac[hmacOffset + HMAC_LENGTH - 1] & 0xF);
+    // probably int is too small (since there is no unsigned integer)
+    // therefore, a long variable is used
+    long dynamicTruncatedResult = 0;
+    for (int i = 0; i < DYNAMIC_TRUNCATION_WIDTH; ++i) {
+      // shift 8bit to the left to make room for the next byte
+      dynamicTruncatedResult <<= 8;
+      // perform a bitwise inclusive OR on the next offset
+      // this adds the next digit to the dynamic truncated result
+      dynamicTruncatedResult |= (rfc2104hmac[offset + i] & 0xFF);
     }
 
-    // define the array
-    byte[] data = new byte[8];
-    long value  = message;
+    // setting the most significant bit to 0
+    dynamicTruncatedResult &= 0x7FFFFFFF;
+    // making sure we get the right amount of numbers
+    dynamicTruncatedResult %= 1000000;
+
+    return (int) dynamicTruncatedResult;
+  }
 
-    for (int i = 8; i-- > 0; value >>>= 8) {
-      data[i]  = (byte) value;
+  /**
+   * returns a message based on a "corrected timestamp" This method will get the
+   * current system time (Milliseconds since 1970), then remove the seconds
+   * elapsed since the last half minute (i.E. 34 becomes 30). Last, we divide this by
+   * 30.
+   * 
+   * @return the message
+   */
+  public static long getValidMessageBySystemTimestamp() {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s()", "getValidMessageBySystemTimestamp"));
     }
+    long systemTime = System.currentTimeMillis();
+    long message    = systemTime - (systemTime % 30);
+    message         = (long) Math.floor(message / TimeUnit.SECONDS.toMillis(30));
 
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "longToByteArray", data));
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getValidMessageBySystemTimestamp", message));
     }
-    return data;
+    return message;
   }
 }
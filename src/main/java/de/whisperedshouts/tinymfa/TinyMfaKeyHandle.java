@@ -0,0 +1,175 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base32;
+
+/**
+ * Holds the precomputed key material of a single account. The base32 secret is
+ * decoded exactly once into a slot of the {@link TinyMfaSecretStore}; tokens are
+ * then computed straight from that slot by
+ * {@link TinyMfaImplementation#computeToken(long, TinyMfaKeyHandle, byte[])}.
+ * Handles are kept with their account in the {@link TinyMfaAccountCache}.
+ * <p>
+ * A handle counts its users. Once it is destroyed and no computation is using
+ * it anymore, its slot is zeroized and released.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaKeyHandle {
+
+  /**
+   * the account this key material belongs to
+   */
+  private final String accountName;
+
+  /**
+   * the slot of the secret store holding the key
+   */
+  private final int slot;
+
+  /**
+   * the number of key bytes in the slot
+   */
+  private final int keyLength;
+
+  /**
+   * one reference for the owner of the handle, plus one per running computation
+   */
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  /**
+   * whether the owner already gave up its reference
+   */
+  private final AtomicBoolean destroyed = new AtomicBoolean();
+
+  /**
+   * the step offset the last successful validation of this account matched on
+   */
+  private volatile int lastStepOffset;
+
+  /**
+   * creates a new handle from already decoded key bytes. The bytes are copied
+   * into the secret store
+   *
+   * @param accountName
+   *          the account this key material belongs to
+   * @param keyBytes
+   *          the decoded secret key
+   */
+  TinyMfaKeyHandle(String accountName, byte[] keyBytes) {
+    this.accountName = accountName;
+    this.slot        = TinyMfaSecretStore.getInstance().store(keyBytes);
+    this.keyLength   = TinyMfaSecretStore.storedLength(keyBytes.length);
+  }
+
+  /**
+   * decodes a base32 secret into a new handle. The decoded bytes only exist on
+   * the heap until they are copied into the secret store
+   *
+   * @param accountName
+   *          the account the secret belongs to
+   * @param base32SecretKey
+   *          the base32 encoded secretKey
+   * @return the new handle
+   */
+  public static TinyMfaKeyHandle fromBase32(String accountName, String base32SecretKey) {
+    byte[] keyBytes = new Base32().decode(base32SecretKey);
+    try {
+      return new TinyMfaKeyHandle(accountName, keyBytes);
+    } finally {
+      Arrays.fill(keyBytes, (byte) 0);
+    }
+  }
+
+  /**
+   * @return the account this key material belongs to
+   */
+  public String getAccountName() {
+    return accountName;
+  }
+
+  /**
+   * @return the slot of the secret store holding the key
+   */
+  int getSlot() {
+    return slot;
+  }
+
+  /**
+   * @return the number of key bytes in the slot
+   */
+  int getKeyLength() {
+    return keyLength;
+  }
+
+  /**
+   * registers a computation that is about to read the key
+   *
+   * @return false if the handle has already been released
+   */
+  boolean retain() {
+    for (;;) {
+      int current = references.get();
+      if (current == 0) {
+        return false;
+      }
+      if (references.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * unregisters a computation. The last one out zeroizes the slot
+   */
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      TinyMfaSecretStore.getInstance().release(slot);
+    }
+  }
+
+  /**
+   * gives up the owner's reference. The slot is zeroized right away, or as
+   * soon as the running computations are done. Calling this more than once has
+   * no effect
+   */
+  public void destroy() {
+    if (destroyed.compareAndSet(false, true)) {
+      release();
+    }
+  }
+
+  /**
+   * @return true once the key material has been zeroized
+   */
+  public boolean isReleased() {
+    return references.get() == 0;
+  }
+
+  /**
+   * @return the step offset the last successful validation matched on
+   */
+  public int getLastStepOffset() {
+    return lastStepOffset;
+  }
+
+  /**
+   * @param lastStepOffset
+   *          the step offset the last successful validation matched on
+   */
+  public void setLastStepOffset(int lastStepOffset) {
+    this.lastStepOffset = lastStepOffset;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TinyMfaKeyHandle[accountName=%s, lastStepOffset=%s]", accountName, lastStepOffset);
+  }
+}
@@ -0,0 +1,268 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil.QRCODE_FORMAT;
+
+/**
+ * A bounded cache of rendered QRCodes. An image is cached under a digest of
+ * everything it is rendered from: the otpauth url (account, issuer and
+ * secret), the colors, the format and the compression. When any of these
+ * changes, the digest changes and the image is rendered again; images that
+ * are not asked for anymore are evicted, least recently used first. The digest
+ * doubles as the ETag of the image.
+ * <p>
+ * An image carries the secret of its account, so it is only kept for about
+ * the time an enrollment takes, and dropped as soon as the account changes.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaQrcodeCache {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaQrcodeCache.class);
+
+  /**
+   * the number of images to keep when no other size is configured
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+  /**
+   * how long an image is kept when no other time to live is configured
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaQrcodeCache INSTANCE = new TinyMfaQrcodeCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+
+  /**
+   * the rendered images by their key, in access order
+   */
+  private final LinkedHashMap<String, CachedImage> images;
+
+  /**
+   * lookups answered from the cache
+   */
+  private final LongAdder hitCount = new LongAdder();
+
+  /**
+   * lookups that had to render the image
+   */
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * images removed because the cache was full or their time to live passed
+   */
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * the maximum number of images to keep
+   */
+  private int maximumSize;
+
+  /**
+   * how long an image is kept (milliseconds)
+   */
+  private long timeToLive;
+
+  /**
+   * creates a new cache
+   *
+   * @param maximumSize
+   *          the maximum number of images to keep
+   * @param timeToLive
+   *          how long an image is kept (milliseconds)
+   */
+  TinyMfaQrcodeCache(int maximumSize, long timeToLive) {
+    this.maximumSize = maximumSize;
+    this.timeToLive  = timeToLive;
+    this.images      = new LinkedHashMap<String, CachedImage>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedImage> eldest) {
+        boolean evict = size() > TinyMfaQrcodeCache.this.maximumSize;
+        if (evict) {
+          evictionCount.increment();
+        }
+        return evict;
+      }
+    };
+  }
+
+  /**
+   * @return the shared cache instance
+   */
+  public static TinyMfaQrcodeCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * computes the key an image is cached under. The key is a digest, so it can be
+   * handed out as an ETag without revealing the secret
+   *
+   * @param qrCodeUrl
+   *          the otpauth url the QRCode carries
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param format
+   *          the format of the image
+   * @param deflateLevel
+   *          the compression of PNG images
+   * @return the key of the image, url safe base64
+   */
+  public static String keyFor(String qrCodeUrl, int background, int foreground, QRCODE_FORMAT format, int deflateLevel) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(String.format("%06x|%06x|%s|%d|", background & 0xFFFFFF, foreground & 0xFFFFFF, format, deflateLevel).getBytes(StandardCharsets.UTF_8));
+      digest.update(qrCodeUrl.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      // every java runtime has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * returns a cached image
+   *
+   * @param key
+   *          the key of the image, see {@link #keyFor(String, int, int, QRCODE_FORMAT, int)}
+   * @return the image, or null if it is not cached or expired
+   */
+  public synchronized byte[] get(String key) {
+    CachedImage image = images.get(key);
+    if (image != null && System.currentTimeMillis() - image.createTime > timeToLive) {
+      images.remove(key);
+      evictionCount.increment();
+      image = null;
+    }
+    if (image != null) {
+      hitCount.increment();
+      return image.data;
+    }
+    missCount.increment();
+    return null;
+  }
+
+  /**
+   * caches an image
+   *
+   * @param key
+   *          the key of the image, see {@link #keyFor(String, int, int, QRCODE_FORMAT, int)}
+   * @param accountName
+   *          the account whose secret the image carries
+   * @param image
+   *          the rendered image. Must not be changed afterwards
+   */
+  public synchronized void put(String key, String accountName, byte[] image) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("caching qrcode %s of %s (%d bytes)", key, accountName, image.length));
+    }
+    images.put(key, new CachedImage(accountName, image));
+  }
+
+  /**
+   * removes the images of an account. Needs to be called whenever the account
+   * changes, above all when it gets a new secret
+   *
+   * @param accountName
+   *          the account to remove the images of
+   */
+  public synchronized void invalidate(String accountName) {
+    Iterator<CachedImage> iterator = images.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().accountName.equals(accountName)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * applies size and time to live. Surplus images are evicted with the next insert
+   *
+   * @param maximumSize
+   *          the maximum number of images. Values below 1 are ignored
+   * @param timeToLive
+   *          how long an image is kept (milliseconds). Values below 0 are ignored
+   */
+  public synchronized void configure(int maximumSize, long timeToLive) {
+    if (maximumSize > 0) {
+      this.maximumSize = maximumSize;
+    }
+    if (timeToLive >= 0) {
+      this.timeToLive = timeToLive;
+    }
+  }
+
+  /**
+   * @return the number of cached images
+   */
+  public synchronized int size() {
+    return images.size();
+  }
+
+  /**
+   * @return hit, miss and eviction counts of this cache
+   */
+  public Map<String, Object> getStatistics() {
+    long hits   = hitCount.sum();
+    long misses = missCount.sum();
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("size", size());
+    result.put("hits", hits);
+    result.put("misses", misses);
+    result.put("evictions", evictionCount.sum());
+    result.put("hitRatio", (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses));
+    return result;
+  }
+
+  /**
+   * a rendered image, the account it belongs to and when it was rendered
+   */
+  private static class CachedImage {
+
+    /**
+     * the account whose secret the image carries
+     */
+    private final String accountName;
+
+    /**
+     * the rendered image
+     */
+    private final byte[] data;
+
+    /**
+     * when the image was rendered (milliseconds since 1970)
+     */
+    private final long createTime;
+
+    CachedImage(String accountName, byte[] data) {
+      this.accountName = accountName;
+      this.data        = data;
+      this.createTime  = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers which tokens have been accepted recently, so a token cannot be
+ * used twice. Every accepted token is stored as a 64 bit fingerprint of
+ * account and token, together with the step after which it cannot match
+ * anymore. The entries live in fixed size, open addressed primitive arrays;
+ * expired entries are simply overwritten. If all slots a key may use are
+ * taken, the entry that expires first is evicted. An evicted entry that has
+ * not expired yet no longer protects its token on this node; such evictions
+ * are counted and logged, they mean the capacity is too small.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaReplayCache {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaReplayCache.class);
+
+  /**
+   * the number of slots when no other size is configured
+   */
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  /**
+   * the number of independently locked segments
+   */
+  private static final int SEGMENT_COUNT = 16;
+
+  /**
+   * how many slots a key may use, starting at its home slot
+   */
+  private static final int MAXIMUM_PROBES = 8;
+
+  /**
+   * the shared instance
+   */
+  private static volatile TinyMfaReplayCache instance;
+
+  /**
+   * the segments of the table
+   */
+  private final Segment[] segments;
+
+  /**
+   * tokens rejected because they had been used before
+   */
+  private final LongAdder replayCount = new LongAdder();
+
+  /**
+   * entries evicted before their token expired
+   */
+  private final LongAdder unexpiredEvictionCount = new LongAdder();
+
+  /**
+   * an independently locked part of the table
+   */
+  private static final class Segment {
+
+    /**
+     * the fingerprints. 0 marks a slot that has never been used
+     */
+    private final long[] fingerprints;
+
+    /**
+     * the step after which the token of a slot cannot match anymore
+     */
+    private final long[] expirySteps;
+
+    private Segment(int capacity) {
+      this.fingerprints = new long[capacity];
+      this.expirySteps  = new long[capacity];
+    }
+  }
+
+  /**
+   * creates a new cache
+   *
+   * @param capacity
+   *          the number of slots. Rounded up to a power of two
+   */
+  TinyMfaReplayCache(int capacity) {
+    int segmentCapacity = Integer.highestOneBit(Math.max(MAXIMUM_PROBES, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT) - 1) << 1;
+    this.segments       = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  /**
+   * returns the shared cache. It is created with the first call; the capacity
+   * cannot be changed afterwards
+   *
+   * @param capacity
+   *          the number of slots. Values below 1 use the default
+   * @return the shared cache
+   */
+  public static TinyMfaReplayCache getInstance(int capacity) {
+    TinyMfaReplayCache result = instance;
+    if (result == null) {
+      synchronized (TinyMfaReplayCache.class) {
+        result = instance;
+        if (result == null) {
+          result   = new TinyMfaReplayCache((capacity > 0) ? capacity : DEFAULT_CAPACITY);
+          instance = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the shared cache, or null if it has not been created yet
+   */
+  public static TinyMfaReplayCache getInstanceIfCreated() {
+    return instance;
+  }
+
+  /**
+   * checks whether a token has already been accepted and could still match
+   *
+   * @param accountName
+   *          the account presenting the token
+   * @param token
+   *          the token
+   * @param step
+   *          the current time step
+   * @return true if the token is a replay
+   */
+  public boolean isUsed(String accountName, int token, long step) {
+    long fingerprint = fingerprint(accountName, token);
+    Segment segment  = segmentOf(fingerprint);
+    int mask         = segment.fingerprints.length - 1;
+    synchronized (segment) {
+      for (int probe = 0, slot = homeSlot(fingerprint, mask); probe < MAXIMUM_PROBES; probe++, slot = (slot + 1) & mask) {
+        if (segment.fingerprints[slot] == fingerprint && segment.expirySteps[slot] >= step) {
+          replayCount.increment();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * remembers an accepted token
+   *
+   * @param accountName
+   *          the account that presented the token
+   * @param token
+   *          the token
+   * @param step
+   *          the current time step
+   * @param expiryStep
+   *          the last step the token could match on
+   * @return false if another request has accepted the same token in the meantime
+   */
+  public boolean markUsed(String accountName, int token, long step, long expiryStep) {
+    long fingerprint = fingerprint(accountName, token);
+    Segment segment  = segmentOf(fingerprint);
+    int mask         = segment.fingerprints.length - 1;
+    synchronized (segment) {
+      int target = -1;
+      for (int probe = 0, slot = homeSlot(fingerprint, mask); probe < MAXIMUM_PROBES; probe++, slot = (slot + 1) & mask) {
+        if (segment.fingerprints[slot] == fingerprint && segment.expirySteps[slot] >= step) {
+          replayCount.increment();
+          return false;
+        }
+        // prefer a free or expired slot, otherwise evict the entry that expires first
+        if (target < 0 || segment.expirySteps[slot] < segment.expirySteps[target]) {
+          target = slot;
+        }
+      }
+      if (segment.fingerprints[target] != 0 && segment.expirySteps[target] >= step) {
+        unexpiredEvictionCount.increment();
+        long evictions = unexpiredEvictionCount.sum();
+        // one warning per thousand, a cache that is too small would flood the log otherwise
+        if (evictions % 1000 == 1) {
+          _logger.warn(String.format("replay cache is full, %s tokens have been evicted before they expired. Increase replayCacheSize", evictions));
+        }
+      }
+      segment.fingerprints[target] = fingerprint;
+      segment.expirySteps[target]  = expiryStep;
+    }
+    return true;
+  }
+
+  /**
+   * @return the size of the cache, the number of rejected replays and the
+   *         number of tokens evicted before they expired
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> result = new HashMap<>();
+    result.put("capacity", segments.length * segments[0].fingerprints.length);
+    result.put("replaysRejected", replayCount.sum());
+    result.put("unexpiredEvictions", unexpiredEvictionCount.sum());
+    return result;
+  }
+
+  /**
+   * @param fingerprint
+   *          a fingerprint
+   * @return the segment the fingerprint belongs to
+   */
+  private Segment segmentOf(long fingerprint) {
+    return segments[(int) (fingerprint >>> 60) & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * @param fingerprint
+   *          a fingerprint
+   * @param mask
+   *          the capacity of a segment minus one
+   * @return the first slot the fingerprint may use
+   */
+  private static int homeSlot(long fingerprint, int mask) {
+    return (int) fingerprint & mask;
+  }
+
+  /**
+   * computes the fingerprint of an account and a token. Never 0
+   *
+   * @param accountName
+   *          the account
+   * @param token
+   *          the token
+   * @return the fingerprint
+   */
+  static long fingerprint(String accountName, int token) {
+    // FNV-1a over the account name, then the token mixed in
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < accountName.length(); i++) {
+      hash ^= accountName.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= token;
+    // murmur3 finalizer, so all bits depend on account and token
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return (hash == 0) ? 1 : hash;
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps decoded secret keys outside of the java heap. Keys are stored in fixed
+ * size slots of direct {@link ByteBuffer} chunks; a slot is zeroized as soon as
+ * it is released. This way, decoded secrets neither pile up as garbage nor show
+ * up in heap dumps.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaSecretStore {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaSecretStore.class);
+
+  /**
+   * the size of a slot. Keys longer than this are stored as their SHA-1 hash,
+   * just like rfc2104 would use them anyway
+   */
+  public static final int SLOT_SIZE = TinyMfaImplementation.HMAC_BLOCK_SIZE;
+
+  /**
+   * how many slots are allocated at once
+   */
+  public static final int SLOTS_PER_CHUNK = 1024;
+
+  /**
+   * the shared instance
+   */
+  private static final TinyMfaSecretStore INSTANCE = new TinyMfaSecretStore();
+
+  /**
+   * the allocated chunks. Replaced (never modified) when the store grows, so
+   * readers do not need to lock
+   */
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+  /**
+   * the slots that are currently free, used as a stack
+   */
+  private int[] freeSlots = new int[0];
+
+  /**
+   * the number of valid entries in freeSlots
+   */
+  private int freeSlotCount;
+
+  /**
+   * @return the shared instance
+   */
+  public static TinyMfaSecretStore getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * copies a key into a free slot. The caller should zeroize its own copy
+   * afterwards
+   *
+   * @param key
+   *          the decoded secret key
+   * @return the slot the key was stored in
+   */
+  public synchronized int store(byte[] key) {
+    byte[] hashedKey = null;
+    byte[] source    = key;
+    if (key.length > SLOT_SIZE) {
+      hashedKey = sha1(key);
+      source    = hashedKey;
+    }
+
+    if (freeSlotCount == 0) {
+      grow();
+    }
+    int slot          = freeSlots[--freeSlotCount];
+    ByteBuffer chunk  = chunks[slot / SLOTS_PER_CHUNK];
+    int position      = positionOf(slot);
+    for (int i = 0; i < SLOT_SIZE; i++) {
+      chunk.put(position + i, (i < source.length) ? source[i] : 0);
+    }
+
+    if (hashedKey != null) {
+      Arrays.fill(hashedKey, (byte) 0);
+    }
+    return slot;
+  }
+
+  /**
+   * zeroizes a slot and makes it available again
+   *
+   * @param slot
+   *          the slot to release
+   */
+  public synchronized void release(int slot) {
+    ByteBuffer chunk = chunks[slot / SLOTS_PER_CHUNK];
+    int position     = positionOf(slot);
+    for (int i = 0; i < SLOT_SIZE; i++) {
+      chunk.put(position + i, (byte) 0);
+    }
+    freeSlots[freeSlotCount++] = slot;
+  }
+
+  /**
+   * @param slot
+   *          a slot returned by {@link #store(byte[])}
+   * @return the chunk holding this slot. Only absolute reads may be used on it
+   */
+  ByteBuffer chunkOf(int slot) {
+    return chunks[slot / SLOTS_PER_CHUNK];
+  }
+
+  /**
+   * @param slot
+   *          a slot returned by {@link #store(byte[])}
+   * @return where the slot starts inside its chunk
+   */
+  static int positionOf(int slot) {
+    return (slot % SLOTS_PER_CHUNK) * SLOT_SIZE;
+  }
+
+  /**
+   * @param keyLength
+   *          the length of a decoded key
+   * @return the number of bytes the key occupies once it is stored
+   */
+  static int storedLength(int keyLength) {
+    return (keyLength > SLOT_SIZE) ? TinyMfaImplementation.HMAC_LENGTH : keyLength;
+  }
+
+  /**
+   * @return capacity and usage of this store
+   */
+  public synchronized Map<String, Object> getStatistics() {
+    int capacity = chunks.length * SLOTS_PER_CHUNK;
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("slotsInUse", capacity - freeSlotCount);
+    result.put("slotCapacity", capacity);
+    result.put("offHeapBytes", (long) capacity * SLOT_SIZE);
+    return result;
+  }
+
+  /**
+   * adds another chunk of slots
+   */
+  private void grow() {
+    ByteBuffer[] grownChunks     = Arrays.copyOf(chunks, chunks.length + 1);
+    grownChunks[chunks.length]   = ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * SLOT_SIZE);
+
+    // the free list can hold every slot, so release never has to grow it
+    int firstSlot = chunks.length * SLOTS_PER_CHUNK;
+    freeSlots     = Arrays.copyOf(freeSlots, grownChunks.length * SLOTS_PER_CHUNK);
+    for (int slot = firstSlot + SLOTS_PER_CHUNK; slot-- > firstSlot;) {
+      freeSlots[freeSlotCount++] = slot;
+    }
+    chunks = grownChunks;
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("secret store grown to %s slots", grownChunks.length * SLOTS_PER_CHUNK));
+    }
+  }
+
+  /**
+   * hashes a key that does not fit into a slot
+   *
+   * @param key
+   *          the key to hash
+   * @return the SHA-1 hash of the key
+   */
+  private static byte[] sha1(byte[] key) {
+    try {
+      return MessageDigest.getInstance(TinyMfaImplementation.SHA1_ALGORITHM).digest(key);
+    } catch (NoSuchAlgorithmException e) {
+      // every java platform is required to support SHA-1
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+}
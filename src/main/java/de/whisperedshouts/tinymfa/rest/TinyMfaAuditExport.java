@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.TinyMfaAuditRecord;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.AUDIT_FILTER;
+import de.whisperedshouts.tinymfa.util.TinyMfaJsonWriter;
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil;
+
+/**
+ * Writes the validation attempts to the response while they are read from the
+ * database. Every row is written as soon as it has been fetched, nothing is
+ * collected, so the memory used does not depend on the number of rows. The
+ * connection is opened when the response is written and closed when the
+ * export is done.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditExport implements StreamingOutput {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAuditExport.class);
+
+  /**
+   * the size of the buffer between the rows and the response (characters)
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * the formats an export can be written in
+   */
+  public static enum EXPORT_FORMAT {
+    /** one JSON object per line */
+    NDJSON("application/x-ndjson", "ndjson"),
+    /** comma separated values with a header line */
+    CSV("text/csv", "csv");
+
+    /**
+     * the media type of the response
+     */
+    private final String mediaType;
+
+    /**
+     * the file extension of the download
+     */
+    private final String extension;
+
+    private EXPORT_FORMAT(String mediaType, String extension) {
+      this.mediaType = mediaType;
+      this.extension = extension;
+    }
+
+    /**
+     * @return the media type of the response
+     */
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    /**
+     * @return the file extension of the download
+     */
+    public String getExtension() {
+      return extension;
+    }
+
+    /**
+     * returns the format for a request parameter like "ndjson" or "csv"
+     * @param value the value of the request parameter
+     * @return the matching format, or null if the value is unknown
+     */
+    public static EXPORT_FORMAT fromParameter(String value) {
+      EXPORT_FORMAT result = null;
+      if (value != null) {
+        for (EXPORT_FORMAT format : values()) {
+          if (format.name().equalsIgnoreCase(value.trim())) {
+            result = format;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * opens the connection to read from
+   */
+  private final Callable<Connection> connectionSupplier;
+
+  /**
+   * the filters to apply and their values
+   */
+  private final EnumMap<AUDIT_FILTER, Object> filters;
+
+  /**
+   * the format to write
+   */
+  private final EXPORT_FORMAT format;
+
+  /**
+   * whether the export is gzip compressed
+   */
+  private final boolean gzip;
+
+  /**
+   * creates a new export
+   *
+   * @param connectionSupplier
+   *          opens the connection to read from. It is called when the response is written
+   * @param filters
+   *          the filters to apply and their values
+   * @param format
+   *          the format to write
+   * @param gzip
+   *          whether the export is gzip compressed
+   */
+  public TinyMfaAuditExport(Callable<Connection> connectionSupplier, EnumMap<AUDIT_FILTER, Object> filters, EXPORT_FORMAT format, boolean gzip) {
+    this.connectionSupplier = connectionSupplier;
+    this.filters            = filters;
+    this.format             = format;
+    this.gzip               = gzip;
+  }
+
+  /**
+   * @return the name of the file the export is downloaded as
+   */
+  public String getFileName() {
+    return "tinymfa-audit." + format.getExtension() + (gzip ? ".gz" : "");
+  }
+
+  /**
+   * @return the media type of the response
+   */
+  public String getMediaType() {
+    return gzip ? "application/gzip" : format.getMediaType();
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(filters %s, format %s, gzip %s)", "write", filters, format, gzip));
+    }
+    long rows                       = 0;
+    long start                      = System.currentTimeMillis();
+    Connection connection           = null;
+    PreparedStatement prepStatement = null;
+    ResultSet resultSet             = null;
+    GZIPOutputStream gzipOutput     = gzip ? new GZIPOutputStream(output, BUFFER_SIZE) : null;
+    Writer writer                   = new BufferedWriter(new OutputStreamWriter(gzip ? gzipOutput : output, StandardCharsets.UTF_8), BUFFER_SIZE);
+    try {
+      connection = connectionSupplier.call();
+      SqlSelectHelper sqlSelectHelper = SqlSelectHelper.forConnection(connection);
+      prepStatement = connection.prepareStatement(sqlSelectHelper.getAuditExportQuery(filters.keySet()),
+          ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      prepStatement.setFetchSize(sqlSelectHelper.getStreamingFetchSize());
+      SqlSelectHelper.bindAuditFilters(prepStatement, 1, filters);
+
+      TinyMfaJsonWriter jsonWriter = new TinyMfaJsonWriter(writer);
+      if (format == EXPORT_FORMAT.CSV) {
+        writer.write("id,accessTime,cts,account,status,succeeded\r\n");
+      }
+      resultSet = prepStatement.executeQuery();
+      while (resultSet.next()) {
+        TinyMfaAuditRecord record = TinyMfaAuditRecord.fromResultSet(resultSet);
+        if (format == EXPORT_FORMAT.CSV) {
+          writeCsvRow(writer, record);
+        } else {
+          jsonWriter.writeAudit(record);
+          jsonWriter.writeLineBreak();
+        }
+        rows++;
+      }
+      writer.flush();
+      if (gzipOutput != null) {
+        gzipOutput.finish();
+      }
+    } catch (IOException e) {
+      // the client has most likely gone away, there is nobody left to tell
+      _logger.warn(String.format("audit export aborted after %d rows: %s", rows, e.getMessage()));
+      throw e;
+    } catch (Exception e) {
+      _logger.error(String.format("audit export failed after %d rows: %s", rows, e.getMessage()));
+      throw new WebApplicationException(e);
+    } finally {
+      if(resultSet != null) {
+        try {
+          resultSet.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+      if(prepStatement != null) {
+        try {
+          prepStatement.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (exported %d rows in %d ms)", "write", rows, System.currentTimeMillis() - start));
+    }
+  }
+
+  /**
+   * writes an attempt as a line of comma separated values, with the columns of the JSON export
+   *
+   * @param writer
+   *          the writer to write to
+   * @param record
+   *          the attempt to write
+   * @throws IOException
+   */
+  private static void writeCsvRow(Writer writer, TinyMfaAuditRecord record) throws IOException {
+    writer.write(Long.toString(record.getId()));
+    writer.write(',');
+    TinyMfaUtil.DATE_FORMATTER.formatTo(Instant.ofEpochMilli(record.getAccessTime()), writer);
+    writer.write(',');
+    writer.write(Long.toString(record.getCts()));
+    writer.write(',');
+    writeCsvField(writer, record.getAccountName());
+    writer.write(',');
+    writer.write(record.isAccountEnabled() ? "true" : "false");
+    writer.write(',');
+    writer.write(record.isSucceeded() ? "true" : "false");
+    writer.write("\r\n");
+  }
+
+  /**
+   * writes a CSV field, quoted if it contains a separator, a quote or a line break
+   *
+   * @param writer
+   *          the writer to write to
+   * @param value
+   *          the value to write. null is written as an empty field
+   * @throws IOException
+   */
+  static void writeCsvField(Writer writer, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote  = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      writer.write(value);
+      return;
+    }
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        writer.write('"');
+      }
+      writer.write(c);
+    }
+    writer.write('"');
+  }
+}
@@ -0,0 +1,373 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil;
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil.QRCODE_FORMAT;
+
+/**
+ * Writes the QRCodes of many identities as a ZIP archive, an image per
+ * identity, for enrollment letters. The secrets are looked up one after the
+ * other on the writing thread, creating missing accounts on the way; the
+ * images are rendered on a pool of a bounded size and added to the archive as
+ * soon as they are done. Only a few images are held at any time, however many
+ * identities are exported. The last entry of the archive, report.csv, tells
+ * for every identity whether its account was created or existed, or why it is
+ * missing.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaQrcodeExport implements StreamingOutput {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaQrcodeExport.class);
+
+  /**
+   * the name of the report entry
+   */
+  private static final String REPORT_ENTRY = "report.csv";
+
+  /**
+   * how many identities are exported between two progress messages
+   */
+  private static final int PROGRESS_INTERVAL = 100;
+
+  /**
+   * looks up what the QRCode of an identity carries. Called on the writing thread only
+   */
+  public static interface PayloadResolver {
+    /**
+     * @param identityName
+     *          the identity to look up
+     * @return the payload of the QRCode of the identity
+     * @throws Exception
+     *           when the identity does not exist or its account cannot be read or created
+     */
+    Payload resolve(String identityName) throws Exception;
+  }
+
+  /**
+   * what the QRCode of an identity carries
+   */
+  public static class Payload {
+
+    /**
+     * the otpauth url of the account
+     */
+    private final String qrCodeUrl;
+
+    /**
+     * whether the account has been created for the export
+     */
+    private final boolean created;
+
+    /**
+     * @param qrCodeUrl
+     *          the otpauth url of the account
+     * @param created
+     *          whether the account has been created for the export
+     */
+    public Payload(String qrCodeUrl, boolean created) {
+      this.qrCodeUrl = qrCodeUrl;
+      this.created   = created;
+    }
+  }
+
+  /**
+   * the identities to export, in the order of the archive
+   */
+  private final Collection<String> identityNames;
+
+  /**
+   * looks up the payloads
+   */
+  private final PayloadResolver payloadResolver;
+
+  /**
+   * the format of the images
+   */
+  private final QRCODE_FORMAT format;
+
+  /**
+   * the background color (RGB)
+   */
+  private final int background;
+
+  /**
+   * the foreground color (RGB)
+   */
+  private final int foreground;
+
+  /**
+   * the deflate level of PNG images
+   */
+  private final int deflateLevel;
+
+  /**
+   * the number of images rendered at once
+   */
+  private final int parallelism;
+
+  /**
+   * creates a new export
+   *
+   * @param identityNames
+   *          the identities to export, in the order of the archive
+   * @param payloadResolver
+   *          looks up the payloads. It is called when the response is written
+   * @param format
+   *          the format of the images, PNG or SVG
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param deflateLevel
+   *          the deflate level of PNG images
+   * @param parallelism
+   *          the number of images rendered at once
+   */
+  public TinyMfaQrcodeExport(Collection<String> identityNames, PayloadResolver payloadResolver, QRCODE_FORMAT format,
+      int background, int foreground, int deflateLevel, int parallelism) {
+    this.identityNames   = identityNames;
+    this.payloadResolver = payloadResolver;
+    this.format          = format;
+    this.background      = background;
+    this.foreground      = foreground;
+    this.deflateLevel    = deflateLevel;
+    this.parallelism     = Math.max(1, parallelism);
+  }
+
+  /**
+   * @return the name of the file the export is downloaded as
+   */
+  public String getFileName() {
+    return "tinymfa-qrcodes.zip";
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(identities %s, format %s, parallelism %s)", "write", identityNames.size(), format, parallelism));
+    }
+    long start          = System.currentTimeMillis();
+    int exported        = 0;
+    int failed          = 0;
+    int inFlight        = 0;
+    int sequence        = 0;
+    StringWriter report = new StringWriter();
+    report.write("identity,status,detail\r\n");
+
+    ForkJoinPool pool                   = new ForkJoinPool(parallelism);
+    CompletionService<Image> rendering  = new ExecutorCompletionService<>(pool);
+    ZipOutputStream zip                 = new ZipOutputStream(output, StandardCharsets.UTF_8);
+    try {
+      for (String identityName : identityNames) {
+        sequence++;
+        Payload payload;
+        try {
+          payload = payloadResolver.resolve(identityName);
+        } catch (Exception e) {
+          _logger.warn(String.format("no qrcode for %s: %s", identityName, e.getMessage()));
+          writeReportLine(report, identityName, "failed", e.getMessage());
+          failed++;
+          continue;
+        }
+
+        String entryName = String.format("%05d-%s.%s", sequence, toFileName(identityName), format.getExtension());
+        rendering.submit(() -> render(identityName, entryName, payload));
+        inFlight++;
+        // a few images ahead of the archive keep the pool busy, more would only take memory
+        if (inFlight >= parallelism * 2) {
+          if (writeImage(zip, rendering.take(), report)) {
+            exported++;
+          } else {
+            failed++;
+          }
+          inFlight--;
+        }
+        if (sequence % PROGRESS_INTERVAL == 0) {
+          _logger.info(String.format("qrcode export: %d of %d identities done", sequence, identityNames.size()));
+        }
+      }
+      for (; inFlight > 0; inFlight--) {
+        if (writeImage(zip, rendering.take(), report)) {
+          exported++;
+        } else {
+          failed++;
+        }
+      }
+
+      zip.putNextEntry(new ZipEntry(REPORT_ENTRY));
+      zip.write(report.toString().getBytes(StandardCharsets.UTF_8));
+      zip.closeEntry();
+      zip.finish();
+      zip.flush();
+    } catch (IOException e) {
+      // the client has most likely gone away, there is nobody left to tell
+      _logger.warn(String.format("qrcode export aborted after %d images: %s", exported, e.getMessage()));
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WebApplicationException(e);
+    } finally {
+      pool.shutdownNow();
+    }
+
+    _logger.info(String.format("qrcode export wrote %d images, %d identities failed, took %d ms", exported, failed, System.currentTimeMillis() - start));
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (exported %d, failed %d)", "write", exported, failed));
+    }
+  }
+
+  /**
+   * renders the image of an identity. Runs on the pool
+   *
+   * @param identityName
+   *          the identity the image belongs to
+   * @param entryName
+   *          the name of the image in the archive
+   * @param payload
+   *          what the QRCode carries
+   * @return the rendered image, or the reason it could not be rendered
+   */
+  private Image render(String identityName, String entryName, Payload payload) {
+    try {
+      ByteArrayOutputStream image = new ByteArrayOutputStream();
+      TinyMfaUtil.writeQrcode(format, TinyMfaUtil.encodeQrcode(payload.qrCodeUrl), background, foreground, deflateLevel, image);
+      return new Image(identityName, entryName, payload.created, image.toByteArray(), null);
+    } catch (Exception e) {
+      return new Image(identityName, entryName, payload.created, null, String.valueOf(e.getMessage()));
+    }
+  }
+
+  /**
+   * adds a rendered image to the archive, or reports why it could not be rendered
+   *
+   * @param zip
+   *          the archive to write to
+   * @param rendered
+   *          the rendering that is done
+   * @param report
+   *          the report to add the outcome to
+   * @return true if the image has been added
+   * @throws IOException
+   *           when the archive cannot be written
+   */
+  private static boolean writeImage(ZipOutputStream zip, Future<Image> rendered, StringWriter report) throws IOException {
+    Image image;
+    try {
+      image = rendered.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      // render() reports its own failures, this is unexpected
+      throw new IOException(e.getCause());
+    }
+    if (image.data == null) {
+      _logger.warn(String.format("qrcode of %s could not be rendered: %s", image.identityName, image.error));
+      writeReportLine(report, image.identityName, "failed", image.error);
+      return false;
+    }
+    zip.putNextEntry(new ZipEntry(image.entryName));
+    zip.write(image.data);
+    zip.closeEntry();
+    writeReportLine(report, image.identityName, image.created ? "created" : "existing", image.entryName);
+    return true;
+  }
+
+  /**
+   * adds a line to the report
+   *
+   * @param report
+   *          the report to add to
+   * @param identityName
+   *          the identity of the line
+   * @param status
+   *          what happened to the identity
+   * @param detail
+   *          the name of the image or the reason it is missing
+   * @throws IOException
+   */
+  private static void writeReportLine(StringWriter report, String identityName, String status, String detail) throws IOException {
+    TinyMfaAuditExport.writeCsvField(report, identityName);
+    report.write(',');
+    report.write(status);
+    report.write(',');
+    TinyMfaAuditExport.writeCsvField(report, detail);
+    report.write("\r\n");
+  }
+
+  /**
+   * turns an identity name into something every file system accepts
+   *
+   * @param identityName
+   *          the identity name
+   * @return the name with anything but letters, digits, dots, dashes, underscores and at signs replaced
+   */
+  private static String toFileName(String identityName) {
+    return identityName.replaceAll("[^A-Za-z0-9._@-]", "_");
+  }
+
+  /**
+   * a rendered image and what the report says about it
+   */
+  private static class Image {
+
+    /**
+     * the identity the image belongs to
+     */
+    private final String identityName;
+
+    /**
+     * the name of the image in the archive
+     */
+    private final String entryName;
+
+    /**
+     * whether the account has been created for the export
+     */
+    private final boolean created;
+
+    /**
+     * the image, null if it could not be rendered
+     */
+    private final byte[] data;
+
+    /**
+     * why the image could not be rendered
+     */
+    private final String error;
+
+    Image(String identityName, String entryName, boolean created, byte[] data, String error) {
+      this.identityName = identityName;
+      this.entryName    = entryName;
+      this.created      = created;
+      this.data         = data;
+      this.error        = error;
+    }
+  }
+}
@@ -1,33 +1,69 @@
 package de.whisperedshouts.tinymfa.rest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.log4j.Logger;
 
+import com.google.zxing.common.BitMatrix;
+
+import de.whisperedshouts.tinymfa.TinyMfaAccount;
+import de.whisperedshouts.tinymfa.TinyMfaAccountCache;
+import de.whisperedshouts.tinymfa.TinyMfaAccountRecord;
+import de.whisperedshouts.tinymfa.TinyMfaAttemptCounters;
+import de.whisperedshouts.tinymfa.TinyMfaAttemptLimiter;
+import de.whisperedshouts.tinymfa.TinyMfaAuditEntry;
+import de.whisperedshouts.tinymfa.TinyMfaAuditPolicy;
+import de.whisperedshouts.tinymfa.TinyMfaAuditRecord;
+import de.whisperedshouts.tinymfa.TinyMfaAuditWriter;
+import de.whisperedshouts.tinymfa.TinyMfaDriftStatistics;
 import de.whisperedshouts.tinymfa.TinyMfaImplementation;
+import de.whisperedshouts.tinymfa.TinyMfaKeyHandle;
+import de.whisperedshouts.tinymfa.TinyMfaQrcodeCache;
+import de.whisperedshouts.tinymfa.TinyMfaReplayCache;
+import de.whisperedshouts.tinymfa.TinyMfaSecretStore;
 import de.whisperedshouts.tinymfa.util.SqlSelectHelper;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.AUDIT_FILTER;
 import de.whisperedshouts.tinymfa.util.SqlSelectHelper.QUERY_TYPE;
+import de.whisperedshouts.tinymfa.util.TinyMfaJsonWriter;
 import de.whisperedshouts.tinymfa.util.TinyMfaUtil;
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil.QRCODE_FORMAT;
 import sailpoint.api.SailPointContext;
 import sailpoint.object.Capability;
+import sailpoint.object.GroupDefinition;
 import sailpoint.object.Identity;
+import sailpoint.object.QueryOptions;
 import sailpoint.object.Request;
 import sailpoint.object.RequestDefinition;
 import sailpoint.plugin.PluginBaseHelper;
@@ -70,11 +106,26 @@ public class TinyMfaRestInterface extends BasePluginResource {
    */
   private static final String CAPABILITY_PLUGIN_ADMIN  = "TinyMFAAdministrator";
   
+  /**
+   * the caching allowed for QRCodes. Browsers may keep them, but have to revalidate them
+   */
+  private static final String QR_CODE_CACHE_CONTROL = "private, no-cache";
+
   /**
    * a format string for the qr code
    */
   private static final String QR_CODE_FORMATSTRING = "otpauth://totp/%1$s:%2$s@%1$s?algorithm=SHA1&digits=6&issuer=%1$s&period=30&secret=%3$s";
 
+  /**
+   * the largest page of validation attempts a single request may read
+   */
+  private static final int MAXIMUM_AUDIT_PAGE_SIZE = 1000;
+
+  /**
+   * the number of days the daily aggregates cover when the request does not say otherwise
+   */
+  private static final int DEFAULT_DAILY_RANGE_DAYS = 30;
+
   /**
    * the administrative SPRight name
    */
@@ -169,7 +220,7 @@ public class TinyMfaRestInterface extends BasePluginResource {
     PreparedStatement prepStatement  = null;
     try {
       connection    = getConnection();
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.UPDATE_ACCOUNT_ENABLED));
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.UPDATE_ACCOUNT_ENABLED));
       prepStatement.setBoolean(1, enableStatus);
       prepStatement.setString(2, identityName);
 
@@ -177,6 +228,7 @@ public class TinyMfaRestInterface extends BasePluginResource {
       if(countOfModifiedRows > 0) {
         succeeded = true;
       }
+      invalidateCachedAccount(identityName);
     } catch (SQLException e) {
       _logger.error(e.getMessage());
     } catch (GeneralException e) {
@@ -251,6 +303,7 @@ public class TinyMfaRestInterface extends BasePluginResource {
 
       context.saveObject(request);
       context.commitTransaction();
+      invalidateCachedAccount(identityName);
       success = true;
     } catch (GeneralException e) {
       _logger.error(e.getMessage());
@@ -279,19 +332,18 @@ public class TinyMfaRestInterface extends BasePluginResource {
       _logger.debug(String.format("ENTERING method %s(identityName %s)", "getAccount", identityName));
     }
 
-    List<Map<String, Object>> result = new ArrayList<>();
-    Connection connection            = null;
-    PreparedStatement prepStatement  = null;
-    ResultSet resultSet              = null;
+    List<TinyMfaAccountRecord> result = new ArrayList<>();
+    Connection connection             = null;
+    PreparedStatement prepStatement   = null;
+    ResultSet resultSet               = null;
     try {
       connection    = getConnection();
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.SINGLE_ACCOUNT_QUERY));
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.SINGLE_ACCOUNT_QUERY));
       prepStatement.setString(1, identityName);
 
       resultSet = prepStatement.executeQuery();
       while (resultSet.next()) {
-        Map<String, Object> accountObject = TinyMfaUtil.buildAccountObjectMap(resultSet);
-        result.add(accountObject);
+        result.add(TinyMfaAccountRecord.fromResultSet(resultSet));
       }
 
       resultSet.close();
@@ -327,7 +379,11 @@ public class TinyMfaRestInterface extends BasePluginResource {
       _logger.debug(String.format("LEAVING method %s (returns: %s)", "getAccount", result));
     }
 
-    return Response.ok().entity(result).build();
+    return Response.ok((StreamingOutput) output -> {
+      TinyMfaJsonWriter jsonWriter = new TinyMfaJsonWriter(output);
+      jsonWriter.writeAccounts(result, false);
+      jsonWriter.flush();
+    }, MediaType.APPLICATION_JSON).build();
   }
   
   /**
@@ -376,29 +432,30 @@ public class TinyMfaRestInterface extends BasePluginResource {
   /**
    * returns accounts from the database
    * 
+   * @param columnar
+   *          whether to name the columns once and write every account as an array of values
    * @return a list of accounts
    */
   @GET
   @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
   @Produces(MediaType.APPLICATION_JSON)
   @Path("accounts")
-  public Response getAccounts() {
+  public Response getAccounts(@QueryParam("columnar") @DefaultValue("false") boolean columnar) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s()", "getAccounts"));
+      _logger.debug(String.format("ENTERING method %s(columnar %s)", "getAccounts", columnar));
     }
 
-    List<Map<String, Object>> result = new ArrayList<>();
-    Connection connection           = null;
-    PreparedStatement prepStatement = null;
-    ResultSet resultSet             = null;
+    List<TinyMfaAccountRecord> result = new ArrayList<>();
+    Connection connection             = null;
+    PreparedStatement prepStatement   = null;
+    ResultSet resultSet               = null;
     try {
       connection = getConnection();
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.ALL_ACCOUNTS_QUERY));
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.ALL_ACCOUNTS_QUERY));
 
       resultSet = prepStatement.executeQuery();
       while (resultSet.next()) {
-        Map<String, Object> accountObject = TinyMfaUtil.buildAccountObjectMap(resultSet);
-        result.add(accountObject);
+        result.add(TinyMfaAccountRecord.fromResultSet(resultSet));
       }
 
       resultSet.close();
@@ -435,7 +492,11 @@ public class TinyMfaRestInterface extends BasePluginResource {
       _logger.debug(String.format("LEAVING method %s (returns: %s)", "getAccounts", result));
     }
 
-    return Response.ok().entity(result).build();
+    return Response.ok((StreamingOutput) output -> {
+      TinyMfaJsonWriter jsonWriter = new TinyMfaJsonWriter(output);
+      jsonWriter.writeAccounts(result, columnar);
+      jsonWriter.flush();
+    }, MediaType.APPLICATION_JSON).build();
   }
 
   /**
@@ -466,34 +527,227 @@ public class TinyMfaRestInterface extends BasePluginResource {
   }
 
   /**
-   * returns the validation attempts
+   * returns a page of validation attempts, newest first. The page is read with
+   * a keyset condition on the ID, so every page costs the same, no matter how
+   * far back it is
    * 
-   * @return a list containing the validation attempts
+   * @param before
+   *          the cursor returned with the previous page. Omit it for the newest attempts
+   * @param size
+   *          the number of attempts per page
+   * @param account
+   *          only attempts of this account. Optional
+   * @param from
+   *          only attempts made at or after this time (milliseconds since 1970). Optional
+   * @param to
+   *          only attempts made before this time (milliseconds since 1970). Optional
+   * @param succeeded
+   *          only successful or only failed attempts. Optional
+   * @param enabled
+   *          only attempts of enabled or only of disabled accounts. Optional
+   * @param columnar
+   *          whether to name the columns once ("columns") and write every attempt as an array of values ("rows")
+   * @return an object containing the attempts ("attempts") and the cursor of the next page ("next"), which is null on the last page
    */
   @GET
   @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
   @Produces(MediaType.APPLICATION_JSON)
   @Path("audit")
-  public Response getAudit() {
+  public Response getAudit(@QueryParam("before") String before, @QueryParam("size") @DefaultValue("50") int size,
+      @QueryParam("account") String account, @QueryParam("from") Long from, @QueryParam("to") Long to,
+      @QueryParam("succeeded") Boolean succeeded, @QueryParam("enabled") Boolean enabled,
+      @QueryParam("columnar") @DefaultValue("false") boolean columnar) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s()", "getAudit"));
+      _logger.debug(String.format("ENTERING method %s(before %s, size %s, account %s, from %s, to %s, succeeded %s, enabled %s, columnar %s)",
+          "getAudit", before, size, account, from, to, succeeded, enabled, columnar));
     }
 
-    List<Map<String, Object>> result  = new ArrayList<>();
+    long beforeId;
+    try {
+      beforeId = (before == null || before.isEmpty()) ? Long.MAX_VALUE : Long.parseLong(before);
+    } catch (NumberFormatException e) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("invalid cursor " + before).build();
+    }
+    int pageSize = Math.max(1, Math.min(size, MAXIMUM_AUDIT_PAGE_SIZE));
+
+    // the values of the filters that have been supplied, bound in the order of AUDIT_FILTER
+    EnumMap<AUDIT_FILTER, Object> filters = new EnumMap<>(AUDIT_FILTER.class);
+    if (account != null && !account.trim().isEmpty()) {
+      filters.put(AUDIT_FILTER.ACCOUNT_NAME, account.trim());
+    }
+    if (from != null) {
+      filters.put(AUDIT_FILTER.ACCESS_TIME_FROM, from);
+    }
+    if (to != null) {
+      filters.put(AUDIT_FILTER.ACCESS_TIME_TO, to);
+    }
+    if (succeeded != null) {
+      filters.put(AUDIT_FILTER.SUCCEEDED, succeeded);
+    }
+    if (enabled != null) {
+      filters.put(AUDIT_FILTER.ACCOUNT_ENABLED, enabled);
+    }
+
+    List<TinyMfaAuditRecord> attempts = new ArrayList<>();
+    Long next                         = null;
     Connection connection             = null;
-    PreparedStatement prepStatement   = null;
-    ResultSet resultSet               = null;
     try {
       connection = getConnection();
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.AUDIT_QUERY, true));
+      next       = readAuditPage(connection, beforeId, filters, pageSize, attempts);
+    } catch (SQLException e) {
+      _logger.error(e.getMessage());
+    } catch (GeneralException e) {
+      _logger.error(e.getMessage());
+    } finally {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+    }
+
+    String nextCursor = (next == null) ? null : String.valueOf(next);
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s attempts, next %s)", "getAudit", attempts.size(), nextCursor));
+    }
+
+    return Response.ok((StreamingOutput) output -> {
+      TinyMfaJsonWriter jsonWriter = new TinyMfaJsonWriter(output);
+      jsonWriter.writeAuditPage(attempts, nextCursor, columnar);
+      jsonWriter.flush();
+    }, MediaType.APPLICATION_JSON).build();
+  }
+  
+  /**
+   * exports the validation attempts, oldest first. The rows are streamed from
+   * the database to the response, so any number of rows can be exported
+   * 
+   * @param format
+   *          "ndjson" (default) or "csv"
+   * @param gzip
+   *          whether the export shall be gzip compressed
+   * @param account
+   *          only attempts of this account. Optional
+   * @param from
+   *          only attempts made at or after this time (milliseconds since 1970). Optional
+   * @param to
+   *          only attempts made before this time (milliseconds since 1970). Optional
+   * @return the export as a download
+   */
+  @GET
+  @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
+  @Produces({ "application/x-ndjson", "text/csv", "application/gzip" })
+  @Path("audit/export")
+  public Response exportAudit(@QueryParam("format") @DefaultValue("ndjson") String format, @QueryParam("gzip") @DefaultValue("false") boolean gzip,
+      @QueryParam("account") String account, @QueryParam("from") Long from, @QueryParam("to") Long to) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(format %s, gzip %s, account %s, from %s, to %s)", "exportAudit", format, gzip, account, from, to));
+    }
+
+    TinyMfaAuditExport.EXPORT_FORMAT exportFormat = TinyMfaAuditExport.EXPORT_FORMAT.fromParameter(format);
+    if (exportFormat == null) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("unknown export format " + format).build();
+    }
+
+    EnumMap<AUDIT_FILTER, Object> filters = new EnumMap<>(AUDIT_FILTER.class);
+    if (account != null && !account.trim().isEmpty()) {
+      filters.put(AUDIT_FILTER.ACCOUNT_NAME, account.trim());
+    }
+    if (from != null) {
+      filters.put(AUDIT_FILTER.ACCESS_TIME_FROM, from);
+    }
+    if (to != null) {
+      filters.put(AUDIT_FILTER.ACCESS_TIME_TO, to);
+    }
+
+    // the connection is opened by the export, once the response is written
+    TinyMfaAuditExport export = new TinyMfaAuditExport(this::getConnection, filters, exportFormat, gzip);
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "exportAudit", export.getFileName()));
+    }
+
+    return Response.ok(export, export.getMediaType())
+        .header("Content-Disposition", "attachment; filename=\"" + export.getFileName() + "\"")
+        .build();
+  }
+
+  /**
+   * returns the validation attempts per day (UTC), read from the daily table
+   * instead of the attempts themselves. Without a grouping, the attempts of all
+   * accounts are summed up per day, or only those of the given account. Grouped
+   * by account, the attempts over the whole range are summed up per account,
+   * the accounts with the most failures first
+   *
+   * @param from
+   *          the first day, as any time of it (milliseconds since 1970). Defaults to 30 days before to
+   * @param to
+   *          the last day, as any time of it (milliseconds since 1970). Defaults to today
+   * @param account
+   *          only the attempts of this account. Optional, ignored when grouped by account
+   * @param groupBy
+   *          "day" (default) or "account"
+   * @param size
+   *          the number of accounts to return when grouped by account
+   * @return an object containing the range ("from", "to") and the aggregates ("days" or "accounts")
+   */
+  @GET
+  @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("audit/daily")
+  public Response getAuditDaily(@QueryParam("from") Long from, @QueryParam("to") Long to, @QueryParam("account") String account,
+      @QueryParam("groupBy") @DefaultValue("day") String groupBy, @QueryParam("size") @DefaultValue("50") int size) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(from %s, to %s, account %s, groupBy %s, size %s)", "getAuditDaily", from, to, account, groupBy, size));
+    }
+
+    boolean byAccount = "account".equalsIgnoreCase(groupBy);
+    if (!byAccount && !"day".equalsIgnoreCase(groupBy)) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("unknown grouping " + groupBy).build();
+    }
+    long lastDay  = (to == null) ? System.currentTimeMillis() : to;
+    lastDay       = lastDay - Math.floorMod(lastDay, TinyMfaAuditPolicy.DAILY_PERIOD);
+    long firstDay = (from == null) ? lastDay - (DEFAULT_DAILY_RANGE_DAYS - 1) * TinyMfaAuditPolicy.DAILY_PERIOD : from;
+    firstDay      = firstDay - Math.floorMod(firstDay, TinyMfaAuditPolicy.DAILY_PERIOD);
+    String accountName = (account == null || account.trim().isEmpty()) ? null : account.trim();
+
+    List<Map<String, Object>> aggregates = new ArrayList<>();
+    Connection connection                = null;
+    PreparedStatement prepStatement      = null;
+    ResultSet resultSet                  = null;
+    try {
+      connection = getConnection();
+      SqlSelectHelper sqlSelectHelper = SqlSelectHelper.forConnection(connection);
+      int index = 1;
+      if (byAccount) {
+        prepStatement = connection.prepareStatement(sqlSelectHelper.getQuery(QUERY_TYPE.AUDIT_DAILY_BY_ACCOUNT));
+      } else if (accountName == null) {
+        prepStatement = connection.prepareStatement(sqlSelectHelper.getQuery(QUERY_TYPE.AUDIT_DAILY_BY_DAY));
+      } else {
+        prepStatement = connection.prepareStatement(sqlSelectHelper.getQuery(QUERY_TYPE.AUDIT_DAILY_OF_ACCOUNT));
+        prepStatement.setString(index++, accountName);
+      }
+      prepStatement.setLong(index++, firstDay);
+      prepStatement.setLong(index++, lastDay + TinyMfaAuditPolicy.DAILY_PERIOD);
+      if (byAccount) {
+        prepStatement.setInt(index++, Math.max(1, Math.min(size, MAXIMUM_AUDIT_PAGE_SIZE)));
+      }
+
       resultSet = prepStatement.executeQuery();
       while (resultSet.next()) {
-        Map<String, Object> auditObject = TinyMfaUtil.buildAuditObjectMap(resultSet);
-        result.add(auditObject);
+        Map<String, Object> aggregate = new HashMap<>();
+        if (byAccount) {
+          aggregate.put("account", resultSet.getString(1));
+        } else {
+          aggregate.put("day", resultSet.getLong(1));
+        }
+        aggregate.put("succeeded", resultSet.getLong(2));
+        aggregate.put("failed", resultSet.getLong(3));
+        aggregates.add(aggregate);
       }
-
-      resultSet.close();
-      prepStatement.close();
     } catch (SQLException e) {
       _logger.error(e.getMessage());
     } catch (GeneralException e) {
@@ -522,13 +776,21 @@ public class TinyMfaRestInterface extends BasePluginResource {
       }
     }
 
+    Map<String, Object> result = new HashMap<>();
+    result.put("from", firstDay);
+    result.put("to", lastDay);
+    if (accountName != null && !byAccount) {
+      result.put("account", accountName);
+    }
+    result.put(byAccount ? "accounts" : "days", aggregates);
+
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getAudit", result));
+      _logger.debug(String.format("LEAVING method %s (returns: %s aggregates)", "getAuditDaily", aggregates.size()));
     }
 
     return Response.ok().entity(result).build();
   }
-  
+
   /**
    * returns the validation attempts, limits the result to the supplied number
    * 
@@ -545,42 +807,16 @@ public class TinyMfaRestInterface extends BasePluginResource {
       _logger.debug(String.format("ENTERING method %s(limit %s)", "getAuditWithLimit", limit));
     }
 
-    List<Map<String, Object>> result  = new ArrayList<>();
-    Connection connection             = null;
-    PreparedStatement prepStatement   = null;
-    ResultSet resultSet               = null;
+    List<TinyMfaAuditRecord> result = new ArrayList<>();
+    Connection connection           = null;
     try {
       connection = getConnection();
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.AUDIT_QUERY, true));
-      prepStatement.setInt(1, limit);
-      
-      resultSet = prepStatement.executeQuery();
-      while (resultSet.next()) {
-        Map<String, Object> auditObject = TinyMfaUtil.buildAuditObjectMap(resultSet);
-        result.add(auditObject);
-      }
-
-      resultSet.close();
-      prepStatement.close();
+      readAuditPage(connection, Long.MAX_VALUE, new EnumMap<>(AUDIT_FILTER.class), Math.max(1, Math.min(limit, MAXIMUM_AUDIT_PAGE_SIZE)), result);
     } catch (SQLException e) {
       _logger.error(e.getMessage());
     } catch (GeneralException e) {
       _logger.error(e.getMessage());
     } finally {
-      if(resultSet != null) {
-        try {
-          resultSet.close();
-        } catch (SQLException e) {
-          _logger.error(e.getMessage());
-        }
-      }
-      if(prepStatement != null) {
-        try {
-          prepStatement.close();
-        } catch (SQLException e) {
-          _logger.error(e.getMessage());
-        }
-      }
       if (connection != null) {
         try {
           connection.close();
@@ -591,10 +827,14 @@ public class TinyMfaRestInterface extends BasePluginResource {
     }
 
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getAuditWithLimit", result));
+      _logger.debug(String.format("LEAVING method %s (returns: %s attempts)", "getAuditWithLimit", result.size()));
     }
 
-    return Response.ok().entity(result).build();
+    return Response.ok((StreamingOutput) output -> {
+      TinyMfaJsonWriter jsonWriter = new TinyMfaJsonWriter(output);
+      jsonWriter.writeAuditList(result, false);
+      jsonWriter.flush();
+    }, MediaType.APPLICATION_JSON).build();
   }
 
   @Override
@@ -607,34 +847,47 @@ public class TinyMfaRestInterface extends BasePluginResource {
    * This can be used with google authenticator. If the account cannot be found
    * in the database, it will be created
    * 
-   * @return the application-url to send with the QRCode
+   * @param format
+   *          "base64" (default) for a base64 encoded PNG image, "png" for the PNG image itself or "svg" for an SVG image
+   * @param ifNoneMatch
+   *          the ETags of the QRCodes the client has already got. Optional
+   * @return the QRCode carrying the application-url, or 304 if the client has got it already
    */
   @GET
-  @Produces(MediaType.TEXT_PLAIN)
+  @Produces({ MediaType.TEXT_PLAIN, "image/png", "image/svg+xml" })
   @Path("token/qrcode")
-  public Response getQrCodeData() {
+  public Response getQrCodeData(@QueryParam("format") @DefaultValue("base64") String format, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s()", "getQrCodeData"));
+      _logger.debug(String.format("ENTERING method %s(format %s, ifNoneMatch %s)", "getQrCodeData", format, ifNoneMatch));
+    }
+
+    QRCODE_FORMAT qrCodeFormat = QRCODE_FORMAT.fromParameter(format);
+    if (qrCodeFormat == null) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("unknown qrcode format " + format).build();
     }
     
     boolean hasError      = false;
     String qrCodeUrl      = null;
-    String qrCodeBase64   = null;
+    String qrCodeKey      = null;
+    boolean notModified   = false;
+    byte[] qrCode         = null;
+    BitMatrix modules     = null;
+    int background        = 0;
+    int foreground        = 0;
     String identityName   = null;
-    String sanitizedName  = null;
     String bgColorHex     = PluginBaseHelper.getSettingString(getPluginName(), "bgColorHex");
     String fgColorHex     = PluginBaseHelper.getSettingString(getPluginName(), "fgColorHex");
     String issuer         = PluginBaseHelper.getSettingString(getPluginName(), "issuerDomain");
     
     // check colors. If, for any reasons, these values are empty, initialize with black/white
-    if(bgColorHex == null || bgColorHex.isEmpty()) bgColorHex = "#FFF"; //background is white
-    if(fgColorHex == null || fgColorHex.isEmpty()) bgColorHex = "#000"; //background is black
+    if(bgColorHex == null || bgColorHex.isEmpty()) bgColorHex = "#FFFFFF"; //background is white
+    if(fgColorHex == null || fgColorHex.isEmpty()) fgColorHex = "#000000"; //foreground is black
+    int deflateLevel      = PluginBaseHelper.getSettingInt(getPluginName(), "qrCodeDeflateLevel");
+    int cacheSize         = PluginBaseHelper.getSettingInt(getPluginName(), "qrCodeCacheSize");
+    int cacheTimeToLive   = PluginBaseHelper.getSettingInt(getPluginName(), "qrCodeCacheTimeToLive");
     
     try {
       identityName = getLoggedInUserName();
-      // sanitize the identityName;
-      sanitizedName = java.net.URLEncoder.encode(identityName, "UTF-8");
-      sanitizedName = sanitizedName.replaceAll(" ", "%20");
     } catch (Exception e) {
       _logger.error(e.getMessage());
       hasError = true;
@@ -649,12 +902,35 @@ public class TinyMfaRestInterface extends BasePluginResource {
         userPassword = returnPasswordFromDb(identityName, context);
         if (userPassword == null || userPassword.isEmpty()) {
           userPassword = createAccount(identityName, context);
+          if (userPassword == null) {
+            // another request created the account meanwhile, its secret is the one to show
+            userPassword = returnPasswordFromDb(identityName, context);
+          }
+        }
+        if (userPassword == null || userPassword.isEmpty()) {
+          throw new GeneralException("no secret found for identity " + identityName);
         }
 
-        // trim the password - IOS orders us to do so!
-        userPassword = userPassword.substring(0, userPassword.indexOf("="));
-        qrCodeUrl    = String.format(QR_CODE_FORMATSTRING, issuer, sanitizedName, userPassword);
-        qrCodeBase64 = TinyMfaUtil.generateBase64EncodedQrcode(qrCodeUrl, bgColorHex, fgColorHex);
+        qrCodeUrl    = buildQrCodeUrl(issuer, identityName, userPassword);
+        background   = Integer.decode(bgColorHex);
+        foreground   = Integer.decode(fgColorHex);
+
+        // the key changes with everything the image is rendered from, so it is a strong ETag
+        qrCodeKey    = TinyMfaQrcodeCache.keyFor(qrCodeUrl, background, foreground, qrCodeFormat, deflateLevel);
+        notModified  = matchesEntityTag(ifNoneMatch, qrCodeKey);
+        if (!notModified && cacheSize > 0) {
+          TinyMfaQrcodeCache qrCodeCache = TinyMfaQrcodeCache.getInstance();
+          qrCodeCache.configure(cacheSize, (cacheTimeToLive > 0) ? TimeUnit.SECONDS.toMillis(cacheTimeToLive) : -1);
+          qrCode = qrCodeCache.get(qrCodeKey);
+          if (qrCode == null) {
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            TinyMfaUtil.writeQrcode(qrCodeFormat, TinyMfaUtil.encodeQrcode(qrCodeUrl), background, foreground, deflateLevel, image);
+            qrCode = image.toByteArray();
+            qrCodeCache.put(qrCodeKey, identityName, qrCode);
+          }
+        } else if (!notModified) {
+          modules = TinyMfaUtil.encodeQrcode(qrCodeUrl);
+        }
       } catch (Exception e) {
         _logger.error(e.getMessage());
         hasError = true;
@@ -664,13 +940,231 @@ public class TinyMfaRestInterface extends BasePluginResource {
 
     if (_logger.isDebugEnabled()) {
       if(_logger.isTraceEnabled()) {
-        _logger.trace(String.format("LEAVING method %s (returns: %s)", "getQrCodeData", qrCodeBase64));
+        _logger.trace(String.format("LEAVING method %s (returns: %s)", "getQrCodeData", qrCodeUrl));
       } else {
         _logger.debug(String.format("LEAVING method %s (returns: %s)", "getQrCodeData", "*** (masked)"));
       }
     }
-    // return either an error or the qrCodeUrl
-    return (hasError) ? Response.serverError().build() : Response.ok().entity(qrCodeBase64).build();
+    if (hasError) {
+      return Response.serverError().build();
+    }
+
+    Response.ResponseBuilder response;
+    if (notModified) {
+      response = Response.notModified();
+    } else if (qrCode != null) {
+      response = Response.ok(qrCode, qrCodeFormat.getMediaType());
+    } else {
+      // without a cache, the image is encoded while it is written and never kept in memory
+      BitMatrix qrCodeModules = modules;
+      int bgColor             = background;
+      int fgColor             = foreground;
+      response = Response.ok((StreamingOutput) output -> TinyMfaUtil.writeQrcode(qrCodeFormat, qrCodeModules, bgColor, fgColor, deflateLevel, output),
+          qrCodeFormat.getMediaType());
+    }
+    // the QRCode carries the secret: shared caches must not keep it, browsers have to ask every time
+    return response.tag(new EntityTag(qrCodeKey)).header(HttpHeaders.CACHE_CONTROL, QR_CODE_CACHE_CONTROL).build();
+  }
+
+  /**
+   * builds the otpauth url a QRCode carries
+   *
+   * @param issuer
+   *          the issuer shown in the authenticator app
+   * @param identityName
+   *          the name of the account
+   * @param userPassword
+   *          the base32 encoded secret of the account
+   * @return the otpauth url
+   * @throws UnsupportedEncodingException
+   *           never, UTF-8 is always supported
+   */
+  private static String buildQrCodeUrl(String issuer, String identityName, String userPassword) throws UnsupportedEncodingException {
+    // sanitize the identityName;
+    String sanitizedName = java.net.URLEncoder.encode(identityName, "UTF-8");
+    sanitizedName = sanitizedName.replaceAll(" ", "%20");
+
+    // trim the password - IOS orders us to do so!
+    int padding = userPassword.indexOf("=");
+    if (padding >= 0) {
+      userPassword = userPassword.substring(0, padding);
+    }
+    return String.format(QR_CODE_FORMATSTRING, issuer, sanitizedName, userPassword);
+  }
+
+  /**
+   * checks an If-None-Match header against an entity tag. Weak tags are
+   * compared by their value, as If-None-Match demands
+   *
+   * @param ifNoneMatch
+   *          the value of the header, may be null
+   * @param tag
+   *          the entity tag to look for, without quotes
+   * @return true if the header names the tag or "*"
+   */
+  private static boolean matchesEntityTag(String ifNoneMatch, String tag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals("\"" + tag + "\"")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * exports the QRCodes of many identities as a ZIP archive, for enrollment
+   * letters. Identities without an account get one. The images are rendered
+   * in parallel and streamed as they are done; report.csv, the last entry,
+   * tells for every identity whether its account was created or existed, or
+   * why its image is missing
+   * 
+   * @param identityNames
+   *          the identities to export. Optional if a population is given
+   * @param population
+   *          the name of a population whose members are exported as well. Optional
+   * @param format
+   *          "png" (default) or "svg"
+   * @param parallelism
+   *          the number of images rendered at once. Limited to the number of processors
+   * @return the archive as a download
+   */
+  @POST
+  @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces("application/zip")
+  @Path("accounts/qrcodes")
+  public Response exportQrCodes(List<String> identityNames, @QueryParam("population") String population,
+      @QueryParam("format") @DefaultValue("png") String format, @QueryParam("parallelism") @DefaultValue("4") int parallelism) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(identities %s, population %s, format %s, parallelism %s)", "exportQrCodes",
+          (identityNames == null) ? 0 : identityNames.size(), population, format, parallelism));
+    }
+
+    QRCODE_FORMAT qrCodeFormat = QRCODE_FORMAT.fromParameter(format);
+    if (qrCodeFormat != QRCODE_FORMAT.PNG && qrCodeFormat != QRCODE_FORMAT.SVG) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("unknown qrcode format " + format).build();
+    }
+
+    String bgColorHex = PluginBaseHelper.getSettingString(getPluginName(), "bgColorHex");
+    String fgColorHex = PluginBaseHelper.getSettingString(getPluginName(), "fgColorHex");
+    String issuer     = PluginBaseHelper.getSettingString(getPluginName(), "issuerDomain");
+    if(bgColorHex == null || bgColorHex.isEmpty()) bgColorHex = "#FFFFFF"; //background is white
+    if(fgColorHex == null || fgColorHex.isEmpty()) fgColorHex = "#000000"; //foreground is black
+    int deflateLevel  = PluginBaseHelper.getSettingInt(getPluginName(), "qrCodeDeflateLevel");
+
+    // the names only, in the order given, each of them once
+    Set<String> exportedNames = new LinkedHashSet<>();
+    SailPointContext context  = null;
+    int background;
+    int foreground;
+    try {
+      context    = getContext();
+      background = Integer.decode(bgColorHex);
+      foreground = Integer.decode(fgColorHex);
+      if (identityNames != null) {
+        for (String identityName : identityNames) {
+          if (identityName != null && !identityName.trim().isEmpty()) {
+            exportedNames.add(identityName.trim());
+          }
+        }
+      }
+      if (population != null && !population.trim().isEmpty()) {
+        GroupDefinition groupDefinition = context.getObjectByName(GroupDefinition.class, population.trim());
+        if (groupDefinition == null) {
+          return Response.status(Response.Status.BAD_REQUEST).entity("unknown population " + population).build();
+        }
+        Iterator<Object[]> members = context.search(Identity.class, new QueryOptions().addFilter(groupDefinition.getFilter()), "name");
+        while (members.hasNext()) {
+          exportedNames.add((String) members.next()[0]);
+        }
+      }
+    } catch (Exception e) {
+      _logger.error(e.getMessage());
+      return Response.serverError().build();
+    }
+    if (exportedNames.isEmpty()) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("no identities to export").build();
+    }
+
+    // the context is not thread safe, so the secrets are resolved by the writing thread, one after the other
+    SailPointContext resolverContext = context;
+    TinyMfaQrcodeExport export = new TinyMfaQrcodeExport(exportedNames, identityName -> {
+      if (resolverContext.getObjectByName(Identity.class, identityName) == null) {
+        throw new GeneralException("unknown identity");
+      }
+      resolverContext.decache();
+      boolean created     = false;
+      String userPassword = returnPasswordFromDb(identityName, resolverContext);
+      if (userPassword == null || userPassword.isEmpty()) {
+        userPassword = createAccount(identityName, resolverContext);
+        created      = (userPassword != null);
+        if (!created) {
+          // created concurrently, by a login or another export
+          userPassword = returnPasswordFromDb(identityName, resolverContext);
+        }
+      }
+      if (userPassword == null || userPassword.isEmpty()) {
+        throw new GeneralException("no secret found for identity " + identityName);
+      }
+      return new TinyMfaQrcodeExport.Payload(buildQrCodeUrl(issuer, identityName, userPassword), created);
+    }, qrCodeFormat, background, foreground, deflateLevel, Math.max(1, Math.min(parallelism, Runtime.getRuntime().availableProcessors())));
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s identities)", "exportQrCodes", exportedNames.size()));
+    }
+
+    return Response.ok(export, "application/zip")
+        .header("Content-Disposition", "attachment; filename=\"" + export.getFileName() + "\"")
+        .build();
+  }
+
+  /**
+   * returns runtime statistics of the plugin, i.E. how far the clocks of the
+   * validated devices drift and how well the account cache works
+   * 
+   * @return a Map containing the statistics
+   */
+  @GET
+  @RequiredRight(value = SPRIGHT_ADMINISTRATOR_NAME)
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("statistics")
+  public Response getStatistics() {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s()", "getStatistics"));
+    }
+
+    Map<String, Object> result = new HashMap<>();
+    result.put("matchesPerStepOffset", TinyMfaDriftStatistics.getInstance().getMatchesPerOffset());
+    result.put("accountCache", TinyMfaAccountCache.getInstance().getStatistics());
+    result.put("attemptLimiter", TinyMfaAttemptLimiter.getInstance().getStatistics());
+    result.put("secretStore", TinyMfaSecretStore.getInstance().getStatistics());
+    result.put("qrCodeCache", TinyMfaQrcodeCache.getInstance().getStatistics());
+    TinyMfaReplayCache replayCache = TinyMfaReplayCache.getInstanceIfCreated();
+    if (replayCache != null) {
+      result.put("replayCache", replayCache.getStatistics());
+    }
+    result.put("auditPolicy", TinyMfaAuditPolicy.getInstance().getStatistics());
+    TinyMfaAuditWriter auditWriter = TinyMfaAuditWriter.getInstanceIfCreated();
+    if (auditWriter != null) {
+      result.put("auditWriter", auditWriter.getStatistics());
+    }
+    SqlSelectHelper sqlSelectHelper = SqlSelectHelper.getInstanceIfResolved();
+    if (sqlSelectHelper != null) {
+      result.put("schemaVersion", sqlSelectHelper.getSchemaVersion());
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getStatistics", result));
+    }
+
+    return Response.ok().entity(result).build();
   }
 
   /**
@@ -770,60 +1264,119 @@ public class TinyMfaRestInterface extends BasePluginResource {
     
     // get the current timestamp to generate the token
     long currentUnixTime    = TinyMfaImplementation.getValidMessageBySystemTimestamp();
-    
-    // check whether the account is disabled
-    try {
-      isEnabled = isAccountEnabled(identityName, context);
-    } catch (GeneralException | SQLException e) {
-      _logger.error(e.getMessage());
-    }
 
-    // only proceed if the account is enabled
-    if (isEnabled) {
-      // get the maximum attempts from the plugin settings
-      int maximumAllowedValidationAttempts = PluginBaseHelper.getSettingInt(getPluginName(), "maxAttempts");
+    // sanitize the token (just to be sure)
+    int sanitizedToken      = TinyMfaUtil.sanitizeToken(token, 6);
 
-      // check for validation attempts, initialize with safety in mind
-      int attemptsForTimestamp = maximumAllowedValidationAttempts + 1;
-      try {
-        attemptsForTimestamp = returnFailedValidationAttempts(identityName, currentUnixTime);
-      } catch (GeneralException e1) {
-        _logger.error(e1.getMessage());
-      } catch (SQLException e1) {
-        _logger.error(e1.getMessage());
-      }
+    TinyMfaReplayCache replayCache = getReplayCache();
 
-      if (attemptsForTimestamp < maximumAllowedValidationAttempts) {
-        int generatedToken = 0;
-        // sanitize the token (just to be sure)
-        int sanitizedToken = TinyMfaUtil.sanitizeToken(token, 6);
+    // the whole check works on a single connection
+    Connection connection = null;
+    try {
+      connection = getConnection();
 
-        try {
-          if (context == null) {
-            context = getContext();
-          }
-          String userPassword = returnPasswordFromDb(identityName, context);
-          generatedToken      = TinyMfaImplementation.generateValidToken(currentUnixTime, userPassword);
+      // retained by the cache, its key material stays readable until it is released below
+      TinyMfaAccount account = null;
+      try {
+        // the queries below need the current schema, a schema that has not been migrated yet rejects every login
+        SqlSelectHelper sqlSelectHelper = SqlSelectHelper.forConnection(connection);
+        if (!sqlSelectHelper.isSchemaCurrent()) {
+          throw new GeneralException(String.format("schema version is %d, tinyMFA needs %d. Not validating tokens until the migration has completed",
+              sqlSelectHelper.getSchemaVersion(), SqlSelectHelper.REQUIRED_SCHEMA_VERSION));
+        }
 
-          // if codes match, you are welcome
-          isAuthenticated     = (generatedToken == sanitizedToken);
+        // get the maximum attempts from the plugin settings
+        int maximumAllowedValidationAttempts = PluginBaseHelper.getSettingInt(getPluginName(), "maxAttempts");
 
-        } catch (Exception e) {
-          _logger.error(e.getMessage());
+        // the account usually comes from the cache
+        final Connection lookupConnection     = connection;
+        final SailPointContext lookupContext  = (context != null) ? context : getContext();
+        account = getAccountCache().get(identityName,
+            () -> loadAccountForValidation(lookupConnection, lookupContext, identityName));
+        if (account != null) {
+          isEnabled = account.isEnabled();
+        }
+
+        // a token that has been accepted already is rejected before any token is computed.
+        // It is audited with the state the account really has. Only proceed if the account is enabled
+        if (replayCache.isUsed(identityName, sanitizedToken, currentUnixTime)) {
+          _logger.warn(String.format("token of identity %s has already been used, rejecting replay", identityName));
+        } else if (isEnabled) {
+          // failed attempts are counted in memory first, the audit table is not queried.
+          // The shared counters keep the other nodes of the cluster from granting more attempts
+          TinyMfaAttemptLimiter attemptLimiter         = TinyMfaAttemptLimiter.getInstance();
+          TinyMfaAttemptCounters attemptCounters       = getAttemptCounters();
+          TinyMfaAttemptCounters.AttemptState attempts = null;
+          if (!attemptLimiter.tryAcquire(identityName, currentUnixTime, maximumAllowedValidationAttempts)) {
+            _logger.warn(String.format("number attempts (%s) exceeded limit %s for identity %s",
+                attemptLimiter.getAttempts(identityName, currentUnixTime), maximumAllowedValidationAttempts, identityName));
+          } else if (!attemptCounters.isAllowed(attempts = attemptCounters.read(connection, identityName, currentUnixTime), currentUnixTime)) {
+            _logger.warn(String.format("identity %s is locked out or exceeded the attempts of the cluster wide window (%s)", identityName, attempts));
+          } else {
+            if (account == null) {
+              throw new GeneralException("no secret found for identity " + identityName);
+            }
+            TinyMfaKeyHandle keyHandle = account.getKeyHandle();
+            // check the current step and its neighbours, in case the clock of the device drifts.
+            // The offset the account matched on last time is the most likely one, so it goes first
+            int validationWindow = getValidationWindow();
+            int lastStepOffset   = keyHandle.getLastStepOffset();
+            int matchingOffset   = TinyMfaImplementation.findMatchingStepOffset(currentUnixTime, validationWindow, lastStepOffset, keyHandle, sanitizedToken);
+
+            // if codes match, you are welcome. Unless a concurrent request (or another node) used the very same token.
+            // The login is only granted once the replay checks have passed, an exception in between rejects it
+            boolean tokenMatches = (matchingOffset != TinyMfaImplementation.NO_MATCHING_STEP);
+            boolean tokenIsFresh = false;
+            if (tokenMatches) {
+              long matchingStep  = currentUnixTime + matchingOffset;
+              tokenIsFresh       = replayCache.markUsed(identityName, sanitizedToken, currentUnixTime, matchingStep + validationWindow)
+                  && (!PluginBaseHelper.getSettingBool(getPluginName(), "replayProtectionShared") || acceptStepInDb(connection, identityName, matchingStep));
+              if (!tokenIsFresh) {
+                _logger.warn(String.format("token of identity %s has already been used, rejecting replay", identityName));
+              }
+            }
+            isAuthenticated      = tokenMatches && tokenIsFresh;
+            if (isAuthenticated) {
+              TinyMfaDriftStatistics.getInstance().record(matchingOffset);
+              if (matchingOffset != 0) {
+                _logger.info(String.format("token of identity %s matched on step offset %d", identityName, matchingOffset));
+              }
+              attemptLimiter.succeeded(identityName, currentUnixTime);
+              if (matchingOffset != lastStepOffset) {
+                keyHandle.setLastStepOffset(matchingOffset);
+                updateStepOffsetInDb(connection, identityName, matchingOffset);
+              }
+            } else {
+              attemptCounters.recordFailure(connection, identityName, currentUnixTime, attempts);
+            }
+          }
+        }
+      } catch (Exception e) {
+        // whatever failed, a login that could not be checked completely is rejected
+        isAuthenticated = false;
+        _logger.error(e.getMessage());
+      } finally {
+        if (account != null) {
+          account.release();
         }
-      } else {
-        _logger.warn(String.format("number attempts (%s) exceeded limit %s for identity %s", attemptsForTimestamp,
-            maximumAllowedValidationAttempts, identityName));
       }
-    }
-    
-    // log the attempt
-    try {
-      insertValidationAttemptToDb(identityName, currentUnixTime, isEnabled, isAuthenticated);
-    } catch (GeneralException | SQLException e) {
+    } catch (GeneralException e) {
+      isAuthenticated = false;
       _logger.error(e.getMessage());
+    } finally {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
     }
 
+    // log the attempt. The audit policy decides whether it becomes a row, the audit writer inserts it in the background
+    getAuditPolicy().audit(new TinyMfaAuditEntry(System.currentTimeMillis(), currentUnixTime, identityName, isEnabled, isAuthenticated),
+        getAuditWriter());
+
     if (_logger.isDebugEnabled()) {
       _logger.debug(String.format("LEAVING method %s (returns: %s)", "isValidToken", isAuthenticated));
     }
@@ -837,9 +1390,10 @@ public class TinyMfaRestInterface extends BasePluginResource {
    *          the account to create
    * @param context
    *          a SailPointContext to use
-   * @return the base32 encoded secretKey of the created account
+   * @return the base32 encoded secretKey of the created account, null if the
+   *         account exists already. Then the stored secret is the valid one
    * @throws GeneralException
-   * @throws SQLException
+   *           when the account could not be created
    */
   private String createAccount(String identityName, SailPointContext context) throws GeneralException {
     if (_logger.isDebugEnabled()) {
@@ -852,12 +1406,13 @@ public class TinyMfaRestInterface extends BasePluginResource {
 
     generatedPassword = TinyMfaImplementation.generateBase32EncodedSecretKey();
     encryptedPassword = context.encrypt(generatedPassword);
-  
+    // whatever we knew about the old secret is stale now
+    invalidateCachedAccount(identityName);
 
     Connection connection = getConnection();
     PreparedStatement prepStatement = null;;
     try {
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.CREATE_NEW_ACCOUNT));
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.CREATE_NEW_ACCOUNT));
 
       prepStatement.setString(1, identityName);
       prepStatement.setString(2, encryptedPassword);
@@ -869,7 +1424,12 @@ public class TinyMfaRestInterface extends BasePluginResource {
         throw new GeneralException("User could not be created");
       }
     } catch (SQLException e) {
-      _logger.error(e.getMessage());
+      if (!isUniqueViolation(e)) {
+        throw new GeneralException("User could not be created: " + e.getMessage(), e);
+      }
+      // the unique index on ACCOUNT_NAME kept a concurrent request from creating the account twice
+      _logger.info(String.format("account %s has been created concurrently, using the stored secret", identityName));
+      generatedPassword = null;
     } finally {
       if(prepStatement != null) {
         try {
@@ -903,94 +1463,184 @@ public class TinyMfaRestInterface extends BasePluginResource {
   }
 
   /**
-   * Inserts a validation attempt to the database
+   * @param e
+   *          an exception of an insert
+   * @return true if the insert failed because the row exists already. The
+   *         drivers report it with the SQL state class 23, integrity constraint
+   *         violation
+   */
+  private static boolean isUniqueViolation(SQLException e) {
+    return e instanceof SQLIntegrityConstraintViolationException
+        || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+  }
+
+  /**
+   * returns the cluster wide attempt counters, configured according to the plugin settings
+   * 
+   * @return the attempt counters
+   */
+  private TinyMfaAttemptCounters getAttemptCounters() {
+    return new TinyMfaAttemptCounters(PluginBaseHelper.getSettingInt(getPluginName(), "attemptWindowSteps"),
+        PluginBaseHelper.getSettingInt(getPluginName(), "maxAttemptsPerWindow"),
+        PluginBaseHelper.getSettingInt(getPluginName(), "lockoutSteps"));
+  }
+
+  /**
+   * returns the shared replay cache, sized according to the plugin settings
+   * 
+   * @return the replay cache
+   */
+  private TinyMfaReplayCache getReplayCache() {
+    return TinyMfaReplayCache.getInstance(PluginBaseHelper.getSettingInt(getPluginName(), "replayCacheSize"));
+  }
+
+  /**
+   * returns the shared audit policy, configured according to the plugin settings
+   * 
+   * @return the audit policy
+   */
+  private TinyMfaAuditPolicy getAuditPolicy() {
+    TinyMfaAuditPolicy auditPolicy = TinyMfaAuditPolicy.getInstance();
+    auditPolicy.configure(TinyMfaAuditPolicy.SUCCESS_MODE.fromSetting(PluginBaseHelper.getSettingString(getPluginName(), "auditSuccessMode")),
+        PluginBaseHelper.getSettingInt(getPluginName(), "auditSampleRate"),
+        PluginBaseHelper.getSettingInt(getPluginName(), "auditShedLatency"));
+    return auditPolicy;
+  }
+
+  /**
+   * returns the shared audit writer, configured according to the plugin settings
+   * 
+   * @return the audit writer
+   */
+  private TinyMfaAuditWriter getAuditWriter() {
+    TinyMfaAuditWriter auditWriter = TinyMfaAuditWriter.getInstance(PluginBaseHelper.getSettingInt(getPluginName(), "auditQueueCapacity"));
+    auditWriter.configure(PluginBaseHelper.getSettingInt(getPluginName(), "auditBatchSize"),
+        PluginBaseHelper.getSettingInt(getPluginName(), "auditFlushInterval"),
+        TinyMfaAuditWriter.OVERFLOW_POLICY.fromSetting(PluginBaseHelper.getSettingString(getPluginName(), "auditOverflowPolicy")));
+    return auditWriter;
+  }
+
+  /**
+   * returns the shared account cache, configured according to the plugin settings
+   * 
+   * @return the account cache
+   */
+  private TinyMfaAccountCache getAccountCache() {
+    int maximumSize  = PluginBaseHelper.getSettingInt(getPluginName(), "accountCacheSize");
+    int timeToLive   = PluginBaseHelper.getSettingInt(getPluginName(), "accountCacheTimeToLive");
+    TinyMfaAccountCache accountCache = TinyMfaAccountCache.getInstance();
+    accountCache.configure(maximumSize, (timeToLive > 0) ? TimeUnit.SECONDS.toMillis(timeToLive) : -1);
+    return accountCache;
+  }
+
+  /**
+   * forgets whatever is cached about an account: its key material and the
+   * QRCodes carrying its secret. Needs to be called whenever the account changes
    * 
    * @param identityName
-   *          the name of the account to query for
-   * @param cts
-   *          the corrected timestamp to query for
-   * @param isEnabled
-   *          is the account enabled
-   * @param succeeded
-   *          was the validation successful
-   * @return
+   *          the account that changed
+   */
+  private void invalidateCachedAccount(String identityName) {
+    getAccountCache().invalidate(identityName);
+    TinyMfaQrcodeCache.getInstance().invalidate(identityName);
+  }
+
+  /**
+   * returns how many steps before and after the current step are accepted.
+   * The configured value is capped at {@link TinyMfaDriftStatistics#MAXIMUM_WINDOW}
+   * 
+   * @return the validation window
+   */
+  private int getValidationWindow() {
+    int validationWindow = PluginBaseHelper.getSettingInt(getPluginName(), "validationWindow");
+    return Math.max(0, Math.min(validationWindow, TinyMfaDriftStatistics.MAXIMUM_WINDOW));
+  }
+
+  /**
+   * loads the account data a token validation needs
+   * 
+   * @param connection
+   *          the connection to use. It is not closed by this method
+   * @param context
+   *          a SailPointContext to use
+   * @param identityName
+   *          the name of the account to load
+   * @return the account, or null if there is no account for this identityName
    * @throws GeneralException
    * @throws SQLException
    */
-  private boolean insertValidationAttemptToDb(String identityName, long cts, boolean isEnabled, boolean succeeded)
+  private TinyMfaAccount loadAccountForValidation(Connection connection, SailPointContext context, String identityName)
       throws GeneralException, SQLException {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(identityName %s, cts %s, isEnabled %s, succeeded %s)",
-          "insertValidationAttemptToDb", identityName, cts, isEnabled, succeeded));
+      _logger.debug(String.format("ENTERING method %s(identityName %s)", "loadAccountForValidation", identityName));
     }
-
-    boolean wasCompleted = false;
-
-    Connection connection           = getConnection();
+    TinyMfaAccount result           = null;
     PreparedStatement prepStatement = null;
-    
-    
+    ResultSet resultSet             = null;
     try {
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.AUDIT_VALIDATION_ATTEMPT));
-      
-      prepStatement.setLong(1, new java.util.Date().getTime());
-      prepStatement.setLong(2, cts);
-      prepStatement.setString(3, identityName);
-      prepStatement.setBoolean(4, isEnabled);
-      prepStatement.setBoolean(5, succeeded);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.VALIDATION_LOOKUP));
+      prepStatement.setString(1, identityName);
 
-      int resultCode = prepStatement.executeUpdate();
-      if (resultCode != 0) {
-        wasCompleted = true;
+      resultSet = prepStatement.executeQuery();
+      if (resultSet.next()) {
+        boolean isEnabled        = resultSet.getBoolean(1);
+        String encryptedPassword = resultSet.getString(2);
+        int stepOffset           = resultSet.getInt(3);
+
+        if (encryptedPassword != null) {
+          // disabled accounts cannot validate anything, so their secret is not needed
+          TinyMfaKeyHandle keyHandle = null;
+          if (isEnabled) {
+            keyHandle = TinyMfaKeyHandle.fromBase32(identityName, context.decrypt(encryptedPassword));
+            keyHandle.setLastStepOffset(stepOffset);
+          }
+          result = new TinyMfaAccount(identityName, isEnabled, keyHandle);
+        }
       }
-      
-    } catch(Exception e) {
-      _logger.error(e.getMessage());
-      throw new GeneralException(e);
     } finally {
+      if(resultSet != null) {
+        resultSet.close();
+      }
       if(prepStatement != null) {
         prepStatement.close();
       }
-      
-      if(connection != null) {
-        connection.close();
-      }
     }
 
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "insertValidationAttemptToDb", wasCompleted));
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "loadAccountForValidation", result));
     }
-    return wasCompleted;
+    return result;
   }
 
   /**
-   * checks if a given account is disabled
+   * returns the password for the given identityName
    * 
    * @param identityName
-   *          the identityName to check
+   *          the name of the identity
    * @param context
    *          a SailPointContext to use
-   * @return true if the account is disabled
+   * @return the password of the identity
    * @throws GeneralException
    * @throws SQLException
    */
-  private Boolean isAccountEnabled(String identityName, SailPointContext context)
+  private String returnPasswordFromDb(String identityName, SailPointContext context)
       throws GeneralException, SQLException {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(
-          String.format("ENTERING method %s(identityName %s, context %s)", "isAccountEnabled", identityName, context));
+      _logger.debug(String.format("ENTERING method %s(identityName %s, context %s)", "returnPasswordFromDb",
+          identityName, context));
     }
-    boolean isEnabled               = true;
+    String result                   = null;
     Connection connection           = getConnection();
     PreparedStatement prepStatement = null;
     ResultSet resultSet             = null;
     try {
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.IS_ACCOUNT_ENABLED));
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.RETRIEVE_USER_PASSWORD));
       prepStatement.setString(1, identityName);
 
       resultSet = prepStatement.executeQuery();
       if (resultSet.next()) {
-        isEnabled = resultSet.getBoolean(1);
+        String encryptedPassword = resultSet.getString(1);
+        result = context.decrypt(encryptedPassword);
       }
     } catch (SQLException e) {
       _logger.error(e.getMessage());
@@ -1007,47 +1657,97 @@ public class TinyMfaRestInterface extends BasePluginResource {
       }
     }
 
+    if (_logger.isDebugEnabled()) {
+      if(_logger.isTraceEnabled()) {
+        _logger.trace(String.format("LEAVING method %s (returns: %s)", "returnPasswordFromDb", result));
+      } else {
+        _logger.debug(String.format("LEAVING method %s (returns: %s)", "returnPasswordFromDb", "*** (masked)"));
+      }
+    }
+    return result;
+  }
 
+  /**
+   * stores the step the given identityName has just been validated on. This
+   * only succeeds if no token of this or a later step has been accepted before,
+   * on any node
+   * 
+   * @param connection
+   *          the connection to use. It is not closed by this method
+   * @param identityName
+   *          the name of the identity
+   * @param step
+   *          the step the token matched on
+   * @return true if the step has been accepted, false if it is a replay
+   * @throws SQLException
+   */
+  private boolean acceptStepInDb(Connection connection, String identityName, long step) throws SQLException {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "isAccountEnabled", isEnabled));
+      _logger.debug(String.format("ENTERING method %s(identityName %s, step %s)", "acceptStepInDb", identityName, step));
+    }
+    boolean succeeded               = false;
+    PreparedStatement prepStatement = null;
+    try {
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.ACCEPT_STEP));
+      prepStatement.setLong(1, step);
+      prepStatement.setString(2, identityName);
+      prepStatement.setLong(3, step);
+
+      // the condition on the old value makes this atomic across all nodes
+      succeeded = prepStatement.executeUpdate() > 0;
+    } finally {
+      if(prepStatement != null) {
+        prepStatement.close();
+      }
     }
 
-    return isEnabled;
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "acceptStepInDb", succeeded));
+    }
+    return succeeded;
   }
 
   /**
-   * Returns the number of failed validation attempts that have been made for
-   * the given identityName and corrected timestamp
+   * reads the validation attempts older than a cursor, newest first. One row
+   * more than requested is read to find out whether there is a next page
    * 
-   * @param identityName
-   *          the name of the account to query for
-   * @param cts
-   *          the corrected timestamp to query for
-   * @return the number of validation attempts for this identityName and cts
-   * @throws GeneralException
+   * @param connection
+   *          the connection to use. It is not closed by this method
+   * @param before
+   *          only attempts with a lower ID are read
+   * @param filters
+   *          the filters to apply and their values
+   * @param size
+   *          the number of attempts to read
+   * @param attempts
+   *          the list the attempts are added to
+   * @return the cursor of the next page, null if there are no older attempts
    * @throws SQLException
    */
-  private int returnFailedValidationAttempts(String identityName, long cts) throws GeneralException, SQLException {
+  private Long readAuditPage(Connection connection, long before, EnumMap<AUDIT_FILTER, Object> filters, int size, List<TinyMfaAuditRecord> attempts) throws SQLException {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(identityName %s, cts %s)", "returnFailedValidationAttempts",
-          identityName, cts));
+      _logger.debug(String.format("ENTERING method %s(before %s, filters %s, size %s)", "readAuditPage", before, filters, size));
     }
-    int result                      = 0;
-    Connection connection           = getConnection();
+    Long next                       = null;
     PreparedStatement prepStatement = null;
     ResultSet resultSet             = null;
     try {
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.COUNT_VALIDATION_ATTEMPTS));
-      prepStatement.setString(1, identityName);
-      prepStatement.setLong(2, cts);
-      prepStatement.setBoolean(3, false);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getAuditSearchQuery(filters.keySet()));
+      prepStatement.setLong(1, before);
+      int parameterIndex = SqlSelectHelper.bindAuditFilters(prepStatement, 2, filters);
+      prepStatement.setInt(parameterIndex, size + 1);
 
       resultSet = prepStatement.executeQuery();
-      if (resultSet.next()) {
-        result = resultSet.getInt(1);
+      long lastId = 0;
+      while (resultSet.next()) {
+        if (attempts.size() == size) {
+          next = lastId;
+          break;
+        }
+        TinyMfaAuditRecord attempt = TinyMfaAuditRecord.fromResultSet(resultSet);
+        lastId = attempt.getId();
+        attempts.add(attempt);
       }
-    } catch (SQLException e) {
-      _logger.error(e.getMessage());
     } finally {
       if(resultSet != null) {
         resultSet.close();
@@ -1055,70 +1755,49 @@ public class TinyMfaRestInterface extends BasePluginResource {
       if(prepStatement != null) {
         prepStatement.close();
       }
-      
-      if(connection != null) {
-        connection.close();
-      }
     }
 
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "returnFailedValidationAttempts", result));
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "readAuditPage", next));
     }
-    return result;
+    return next;
   }
 
   /**
-   * returns the password for the given identityName
+   * stores the step offset the given identityName matched on
    * 
+   * @param connection
+   *          the connection to use. It is not closed by this method
    * @param identityName
    *          the name of the identity
-   * @param context
-   *          a SailPointContext to use
-   * @return the password of the identity
-   * @throws GeneralException
+   * @param stepOffset
+   *          the step offset to store
+   * @return true if the account was updated
    * @throws SQLException
    */
-  private String returnPasswordFromDb(String identityName, SailPointContext context)
-      throws GeneralException, SQLException {
+  private boolean updateStepOffsetInDb(Connection connection, String identityName, int stepOffset) throws SQLException {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(identityName %s, context %s)", "returnPasswordFromDb",
-          identityName, context));
+      _logger.debug(String.format("ENTERING method %s(identityName %s, stepOffset %s)", "updateStepOffsetInDb", identityName, stepOffset));
     }
-    String result                   = null;
-    Connection connection           = getConnection();
+    boolean succeeded               = false;
     PreparedStatement prepStatement = null;
-    ResultSet resultSet             = null;
     try {
-      prepStatement = connection.prepareStatement(SqlSelectHelper.getValidQuery(connection, QUERY_TYPE.RETRIEVE_USER_PASSWORD));
-      prepStatement.setString(1, identityName);
+      prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.UPDATE_STEP_OFFSET));
+      prepStatement.setInt(1, stepOffset);
+      prepStatement.setString(2, identityName);
 
-      resultSet = prepStatement.executeQuery();
-      if (resultSet.next()) {
-        String encryptedPassword = resultSet.getString(1);
-        result = context.decrypt(encryptedPassword);
-      }
+      succeeded = prepStatement.executeUpdate() > 0;
     } catch (SQLException e) {
       _logger.error(e.getMessage());
     } finally {
-      if(resultSet != null) {
-        resultSet.close();
-      }
       if(prepStatement != null) {
         prepStatement.close();
       }
-      
-      if(connection != null) {
-        connection.close();
-      }
     }
 
     if (_logger.isDebugEnabled()) {
-      if(_logger.isTraceEnabled()) {
-        _logger.trace(String.format("LEAVING method %s (returns: %s)", "returnPasswordFromDb", result));
-      } else {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "returnPasswordFromDb", "*** (masked)"));
-      }
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "updateStepOffsetInDb", succeeded));
     }
-    return result;
+    return succeeded;
   }
-}
\ No newline at end of file
+}
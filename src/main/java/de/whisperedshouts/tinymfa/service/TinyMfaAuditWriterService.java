@@ -0,0 +1,57 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.service;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.TinyMfaAuditWriter;
+import sailpoint.api.SailPointContext;
+import sailpoint.server.BasePluginService;
+import sailpoint.tools.GeneralException;
+
+/**
+ * Ties the audit writer to the lifecycle of the plugin. IdentityIQ starts the
+ * service with the plugin and terminates it when the plugin is reloaded,
+ * uninstalled or the server stops; terminating stops the writer thread and
+ * writes whatever is still queued or counted. Each run applies the plugin
+ * settings to the writer, creating it if the plugin has not audited anything
+ * yet.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditWriterService extends BasePluginService {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAuditWriterService.class);
+
+  @Override
+  public void execute(SailPointContext context) throws GeneralException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s()", "execute"));
+    }
+
+    TinyMfaAuditWriter auditWriter = TinyMfaAuditWriter.getInstance(getSettingInt("auditQueueCapacity"));
+    auditWriter.configure(getSettingInt("auditBatchSize"), getSettingInt("auditFlushInterval"),
+        TinyMfaAuditWriter.OVERFLOW_POLICY.fromSetting(getSettingString("auditOverflowPolicy")));
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (statistics: %s)", "execute", auditWriter.getStatistics()));
+    }
+  }
+
+  @Override
+  public void terminate() {
+    _logger.info("plugin service terminates, stopping the audit writer");
+    TinyMfaAuditWriter.shutdownInstance();
+    super.terminate();
+  }
+
+  @Override
+  public String getPluginName() {
+    return "tiny_mfa_plugin";
+  }
+}
@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author mario.ragucci
+ *
+ */
+package de.whisperedshouts.tinymfa.service;
\ No newline at end of file
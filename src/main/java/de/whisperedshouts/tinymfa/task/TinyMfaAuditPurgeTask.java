@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.task;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper;
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.QUERY_TYPE;
+import sailpoint.api.SailPointContext;
+import sailpoint.object.Attributes;
+import sailpoint.object.TaskResult;
+import sailpoint.object.TaskSchedule;
+import sailpoint.task.BasePluginTaskExecutor;
+import sailpoint.tools.Message;
+
+/**
+ * Deletes validation attempts that are older than the retention period. The
+ * rows are deleted by ACCESS_TIME, oldest first, in batches of a bounded size
+ * that are committed one by one, so no batch holds its locks or its undo for
+ * long. The task can be terminated between two batches.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaAuditPurgeTask extends BasePluginTaskExecutor {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaAuditPurgeTask.class);
+
+  /**
+   * task argument: the number of days to keep. Overrides the plugin setting
+   */
+  public static final String ARG_RETENTION_DAYS = "retentionDays";
+
+  /**
+   * task argument: the number of rows deleted per batch
+   */
+  public static final String ARG_BATCH_SIZE     = "batchSize";
+
+  /**
+   * task result: the number of rows deleted
+   */
+  public static final String RET_ROWS_PURGED    = "rowsPurged";
+
+  /**
+   * task result: the number of batches deleted
+   */
+  public static final String RET_BATCHES        = "batches";
+
+  /**
+   * task result: how long the purge took (milliseconds)
+   */
+  public static final String RET_DURATION       = "purgeDuration";
+
+  /**
+   * the number of rows deleted per batch when the task does not say otherwise
+   */
+  private static final int DEFAULT_BATCH_SIZE   = 5000;
+
+  /**
+   * set when the task is asked to stop. Checked between two batches
+   */
+  private volatile boolean terminated           = false;
+
+  @Override
+  public void execute(SailPointContext context, TaskSchedule schedule, TaskResult result, Attributes<String, Object> arguments) throws Exception {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(arguments %s)", "execute", arguments));
+    }
+
+    int retentionDays = arguments.getInt(ARG_RETENTION_DAYS, getSettingInt("auditRetentionDays"));
+    int batchSize     = arguments.getInt(ARG_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    if (batchSize < 1) {
+      batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    long start        = System.currentTimeMillis();
+    long rowsPurged   = 0;
+    int batches       = 0;
+    if (retentionDays < 1) {
+      result.addMessage(new Message(Message.Type.Info, "audit retention is disabled, nothing purged"));
+    } else {
+      long cutoff = start - TimeUnit.DAYS.toMillis(retentionDays);
+      Connection connection           = null;
+      PreparedStatement prepStatement = null;
+      try {
+        connection    = getConnection();
+        prepStatement = connection.prepareStatement(SqlSelectHelper.forConnection(connection).getQuery(QUERY_TYPE.PURGE_VALIDATION_ATTEMPTS));
+        boolean autoCommit = connection.getAutoCommit();
+        int deleted;
+        do {
+          prepStatement.setLong(1, cutoff);
+          prepStatement.setInt(2, batchSize);
+          deleted = prepStatement.executeUpdate();
+          if (!autoCommit) {
+            connection.commit();
+          }
+          rowsPurged += deleted;
+          batches++;
+          if (_logger.isDebugEnabled()) {
+            _logger.debug(String.format("purged batch %d with %d rows", batches, deleted));
+          }
+          // a short batch means there is nothing older left
+        } while (deleted == batchSize && !terminated);
+      } finally {
+        if(prepStatement != null) {
+          try {
+            prepStatement.close();
+          } catch (SQLException e) {
+            _logger.error(e.getMessage());
+          }
+        }
+        if (connection != null) {
+          try {
+            connection.close();
+          } catch (SQLException e) {
+            _logger.error(e.getMessage());
+          }
+        }
+      }
+      result.addMessage(new Message(Message.Type.Info, String.format("purged %d validation attempts older than %d days in %d batches%s",
+          rowsPurged, retentionDays, batches, terminated ? ", terminated before the end" : "")));
+    }
+
+    long duration = System.currentTimeMillis() - start;
+    result.setAttribute(RET_ROWS_PURGED, rowsPurged);
+    result.setAttribute(RET_BATCHES, batches);
+    result.setAttribute(RET_DURATION, duration);
+    _logger.info(String.format("audit purge removed %d rows in %d batches, took %d ms", rowsPurged, batches, duration));
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (rowsPurged %s, duration %s)", "execute", rowsPurged, duration));
+    }
+  }
+
+  @Override
+  public boolean terminate() {
+    terminated = true;
+    return true;
+  }
+
+  @Override
+  public String getPluginName() {
+    return "tiny_mfa_plugin";
+  }
+}
@@ -5,7 +5,12 @@ package de.whisperedshouts.tinymfa.util;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -43,9 +48,20 @@ public class SqlSelectHelper {
   private static final String SQL_PRODUCT_NAME_MYSQL   = "MySQL";
   
   /**
-   * SQL Query: check for failed validation attempts
+   * the schema version the queries of this helper are written for. Installed with the install
+   * scripts, reached from older schemas with {@link TinyMfaSchemaMigration}
    */
-  private static final String SQL_COUNT_VALIDATION_ATTEMPTS = "SELECT COUNT(*) FROM MFA_VALIDATION_ATTEMPTS WHERE CTS = ? and ACCOUNT_NAME = ? and SUCCEEDED = ?";
+  public static final int REQUIRED_SCHEMA_VERSION = 4;
+
+  /**
+   * how long to wait before a migration that did not complete is tried again, in milliseconds
+   */
+  private static final long MIGRATION_RETRY_INTERVAL = 60000L;
+
+  /**
+   * SQL Query: the latest migration applied to the schema
+   */
+  private static final String SQL_SCHEMA_VERSION = "SELECT MAX(VERSION_ID) FROM MFA_SCHEMA_VERSION";
 
   /**
    * SQL Query: insert a new account into the database. This happens on first usage of the  plugin
@@ -72,6 +88,65 @@ public class SqlSelectHelper {
    */
   private static final String SQL_RETRIEVE_PASSWORD_QUERY = "SELECT USERPASSWORD FROM MFA_ACCOUNTS WHERE ACCOUNT_NAME=?";
 
+  /**
+   * SQL Query: update the step offset the account matched on last time
+   */
+  private static final String SQL_UPDATE_STEP_OFFSET = "UPDATE MFA_ACCOUNTS SET LAST_STEP_OFFSET=? WHERE ACCOUNT_NAME=?";
+
+  /**
+   * SQL Query: remember the step a token has been accepted on, unless a token of this or a later step was accepted before
+   */
+  private static final String SQL_ACCEPT_STEP = "UPDATE MFA_ACCOUNTS SET LAST_ACCEPTED_STEP=? WHERE ACCOUNT_NAME=? AND LAST_ACCEPTED_STEP < ?";
+
+  /**
+   * SQL Query: everything a token validation needs in one round trip. The enabled flag, the secret
+   * and the last step offset
+   */
+  private static final String SQL_VALIDATION_LOOKUP = "SELECT ISENABLED, USERPASSWORD, LAST_STEP_OFFSET FROM MFA_ACCOUNTS WHERE ACCOUNT_NAME=?";
+
+  /**
+   * SQL Query: the attempt counters of an account, over all windows that have not been swept yet
+   */
+  private static final String SQL_SELECT_ATTEMPT_COUNTERS = "SELECT WINDOW_START, ATTEMPTS, LOCKOUTS, LOCKED_UNTIL FROM MFA_ATTEMPT_COUNTERS WHERE ACCOUNT_NAME=?";
+
+  /**
+   * SQL Query: lock an account until the given step
+   */
+  private static final String SQL_LOCK_ATTEMPT_COUNTER = "UPDATE MFA_ATTEMPT_COUNTERS SET LOCKOUTS=?, LOCKED_UNTIL=? WHERE ACCOUNT_NAME=? AND WINDOW_START=?";
+
+  /**
+   * SQL Query: remove counters of past windows that do not hold a running lockout
+   */
+  private static final String SQL_SWEEP_ATTEMPT_COUNTERS = "DELETE FROM MFA_ATTEMPT_COUNTERS WHERE WINDOW_START < ? AND LOCKED_UNTIL < ?";
+
+  /**
+   * SQL Query: the attempts of all accounts per day, over a range of days
+   */
+  private static final String SQL_AUDIT_DAILY_BY_DAY = "SELECT DAY_START, SUM(SUCCEEDED), SUM(FAILED) FROM MFA_AUDIT_DAILY "
+      + "WHERE DAY_START >= ? AND DAY_START < ? GROUP BY DAY_START ORDER BY DAY_START";
+
+  /**
+   * SQL Query: the attempts of a single account per day, over a range of days
+   */
+  private static final String SQL_AUDIT_DAILY_OF_ACCOUNT = "SELECT DAY_START, SUCCEEDED, FAILED FROM MFA_AUDIT_DAILY "
+      + "WHERE ACCOUNT_NAME=? AND DAY_START >= ? AND DAY_START < ? ORDER BY DAY_START";
+
+  /**
+   * SQL Query: the attempts per account over a range of days, most failures first
+   */
+  private static final String SQL_AUDIT_DAILY_BY_ACCOUNT = "SELECT ACCOUNT_NAME, SUM(SUCCEEDED), SUM(FAILED) FROM MFA_AUDIT_DAILY "
+      + "WHERE DAY_START >= ? AND DAY_START < ? GROUP BY ACCOUNT_NAME ORDER BY SUM(FAILED) DESC, ACCOUNT_NAME";
+
+  /**
+   * the fetch size for results that are read from start to end
+   */
+  private static final int STREAMING_FETCH_SIZE = 1000;
+
+  /**
+   * SQL Query: the columns of the audit, as read by {@link de.whisperedshouts.tinymfa.TinyMfaAuditRecord#fromResultSet(java.sql.ResultSet)}
+   */
+  private static final String SQL_SELECT_AUDIT = "SELECT ID, ACCESS_TIME, CTS, ACCOUNT_NAME, ACCOUNT_ENABLED, SUCCEEDED FROM MFA_VALIDATION_ATTEMPTS";
+
   /**
    * SQL Query: select specific account attributes
    */
@@ -83,17 +158,370 @@ public class SqlSelectHelper {
    *
    */
   public static enum QUERY_TYPE {
-    COUNT_VALIDATION_ATTEMPTS,
     CREATE_NEW_ACCOUNT,
     IS_ACCOUNT_ENABLED,
     UPDATE_ACCOUNT_ENABLED,
     AUDIT_VALIDATION_ATTEMPT,
     RETRIEVE_USER_PASSWORD,
+    UPDATE_STEP_OFFSET,
+    ACCEPT_STEP,
     SINGLE_ACCOUNT_QUERY,
     ALL_ACCOUNTS_QUERY,
-    AUDIT_QUERY
+    AUDIT_QUERY,
+    VALIDATION_LOOKUP,
+    SELECT_ATTEMPT_COUNTERS,
+    INCREMENT_ATTEMPT_COUNTER,
+    LOCK_ATTEMPT_COUNTER,
+    SWEEP_ATTEMPT_COUNTERS,
+    INCREMENT_SUCCESS_ROLLUP,
+    PURGE_VALIDATION_ATTEMPTS,
+    INCREMENT_AUDIT_DAILY,
+    AUDIT_DAILY_BY_DAY,
+    AUDIT_DAILY_OF_ACCOUNT,
+    AUDIT_DAILY_BY_ACCOUNT
   }
   
+  /**
+   * the database engines the SqlSelectHelper can generate queries for.
+   * New dialects are added here and in {@link SqlSelectHelper#buildQuery(DIALECT, QUERY_TYPE, boolean)}
+   * @author mario.ragucci
+   *
+   */
+  public static enum DIALECT {
+    ORACLE(SQL_PRODUCT_NAME_ORACLE, "oracle", false),
+    DB2(SQL_PRODUCT_NAME_DB2, "db2", true),
+    MSSQL(SQL_PRODUCT_NAME_MSSQL, "sqlserver", true),
+    MYSQL(SQL_PRODUCT_NAME_MYSQL, "mysql", false);
+
+    /**
+     * the database product name as reported by the jdbc driver
+     */
+    private final String productName;
+
+    /**
+     * the file extension of the install and upgrade scripts of this database
+     */
+    private final String scriptSuffix;
+
+    /**
+     * whether DDL statements take part in a transaction. Oracle and MySQL commit each of them on their own
+     */
+    private final boolean transactionalDdl;
+
+    private DIALECT(String productName, String scriptSuffix, boolean transactionalDdl) {
+      this.productName      = productName;
+      this.scriptSuffix     = scriptSuffix;
+      this.transactionalDdl = transactionalDdl;
+    }
+
+    /**
+     * @return the file extension of the install and upgrade scripts of this database
+     */
+    public String getScriptSuffix() {
+      return scriptSuffix;
+    }
+
+    /**
+     * @return whether a failed upgrade script can be rolled back completely
+     */
+    public boolean hasTransactionalDdl() {
+      return transactionalDdl;
+    }
+
+    /**
+     * returns the dialect for a database product name
+     * @param databaseProductName the product name as reported by the jdbc driver
+     * @return the matching dialect, or null if the database is not supported
+     */
+    public static DIALECT fromProductName(String databaseProductName) {
+      DIALECT result = null;
+      if (databaseProductName != null) {
+        for (DIALECT dialect : values()) {
+          // DB2 reports its platform as well, i.E. DB2/LINUXX8664
+          if (databaseProductName.startsWith(dialect.productName)) {
+            result = dialect;
+            break;
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * the optional predicates of an audit search. Their parameters are bound in
+   * the order of this enum, after the cursor. ACCOUNT_NAME and the ACCESS_TIME
+   * range can use the indexes on (ACCOUNT_NAME, ACCESS_TIME) and ACCESS_TIME.
+   * SUCCEEDED and ACCOUNT_ENABLED are not indexed; on their own they are
+   * checked row by row while the primary key is read backwards from the
+   * cursor, which is fast as long as matching rows are not rare
+   * @author mario.ragucci
+   *
+   */
+  public static enum AUDIT_FILTER {
+    ACCOUNT_NAME("ACCOUNT_NAME = ?"),
+    ACCESS_TIME_FROM("ACCESS_TIME >= ?"),
+    ACCESS_TIME_TO("ACCESS_TIME < ?"),
+    SUCCEEDED("SUCCEEDED = ?"),
+    ACCOUNT_ENABLED("ACCOUNT_ENABLED = ?");
+
+    /**
+     * the predicate, with a single parameter
+     */
+    private final String predicate;
+
+    private AUDIT_FILTER(String predicate) {
+      this.predicate = predicate;
+    }
+  }
+
+  /**
+   * the helper for the plugin datasource. Resolved with the first connection
+   */
+  private static volatile SqlSelectHelper instance;
+
+  /**
+   * the dialect of the datasource
+   */
+  private final DIALECT dialect;
+
+  /**
+   * the schema version of the datasource. 0 if it could not be read
+   */
+  private volatile int schemaVersion;
+
+  /**
+   * when the last migration of the schema was started, in milliseconds
+   */
+  private long lastMigrationAttempt;
+
+  /**
+   * the final SQL of every query type
+   */
+  private final EnumMap<QUERY_TYPE, String> queries;
+
+  /**
+   * the final SQL of every query type, limited to a number of rows where the query type supports it
+   */
+  private final EnumMap<QUERY_TYPE, String> limitedQueries;
+
+  /**
+   * the final SQL of every combination of audit filters, indexed by the bits of their ordinals
+   */
+  private final String[] auditSearchQueries;
+
+  /**
+   * the final SQL of the export of every combination of audit filters, indexed like auditSearchQueries
+   */
+  private final String[] auditExportQueries;
+
+  /**
+   * creates a helper for a dialect and precomputes all of its queries
+   * @param dialect the dialect to generate queries for
+   */
+  public SqlSelectHelper(DIALECT dialect) {
+    this.dialect        = dialect;
+    this.queries        = new EnumMap<>(QUERY_TYPE.class);
+    this.limitedQueries = new EnumMap<>(QUERY_TYPE.class);
+    for (QUERY_TYPE queryType : QUERY_TYPE.values()) {
+      queries.put(queryType, buildQuery(dialect, queryType, false));
+      limitedQueries.put(queryType, buildQuery(dialect, queryType, true));
+    }
+    this.auditSearchQueries = new String[1 << AUDIT_FILTER.values().length];
+    this.auditExportQueries = new String[auditSearchQueries.length];
+    for (int filters = 0; filters < auditSearchQueries.length; filters++) {
+      auditSearchQueries[filters] = buildAuditSearchQuery(dialect, filters);
+      auditExportQueries[filters] = buildAuditExportQuery(filters);
+    }
+  }
+
+  /**
+   * returns the helper for the datasource the connection belongs to. The database
+   * type is determined with the first connection only; the plugin works with a single datasource.
+   * As long as the schema is older than {@link #REQUIRED_SCHEMA_VERSION}, the pending
+   * versions are migrated, at most once per {@link #MIGRATION_RETRY_INTERVAL}
+   * @param connection the connection object we derive the database type from
+   * @return the helper
+   * @throws SQLException when there was an issue getting the connection details or the database is not supported
+   */
+  public static SqlSelectHelper forConnection(Connection connection) throws SQLException {
+    SqlSelectHelper result = instance;
+    if (result == null) {
+      synchronized (SqlSelectHelper.class) {
+        result = instance;
+        if (result == null) {
+          DatabaseMetaData metadata   = connection.getMetaData();
+          String databaseProductName  = metadata.getDatabaseProductName();
+          DIALECT dialect             = DIALECT.fromProductName(databaseProductName);
+          if (dialect == null) {
+            throw new SQLException("could not determine database product - Probably unsupported database type " + databaseProductName);
+          }
+          if (_logger.isDebugEnabled()) {
+            _logger.debug(String.format("Got database type %s, using dialect %s", databaseProductName, dialect));
+          }
+          result               = new SqlSelectHelper(dialect);
+          result.schemaVersion = readSchemaVersion(connection);
+          instance             = result;
+        }
+      }
+    }
+    if (result.schemaVersion < REQUIRED_SCHEMA_VERSION) {
+      result.migrate(connection);
+    }
+    return result;
+  }
+
+  /**
+   * applies the pending schema versions, unless a migration has been tried a short while ago
+   * @param connection a connection to the plugin datasource
+   */
+  private synchronized void migrate(Connection connection) {
+    long now = System.currentTimeMillis();
+    if (schemaVersion < REQUIRED_SCHEMA_VERSION && (lastMigrationAttempt == 0 || now - lastMigrationAttempt >= MIGRATION_RETRY_INTERVAL)) {
+      lastMigrationAttempt = now;
+      schemaVersion        = TinyMfaSchemaMigration.migrate(connection, dialect, readSchemaVersion(connection));
+    }
+  }
+
+  /**
+   * @return the helper for the plugin datasource, or null if no connection has been seen yet
+   */
+  public static SqlSelectHelper getInstanceIfResolved() {
+    return instance;
+  }
+
+  /**
+   * reads the schema version of the datasource
+   * @param connection a connection to the plugin datasource
+   * @return the schema version, 0 if the version table does not exist
+   */
+  static int readSchemaVersion(Connection connection) {
+    int result = 0;
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(SQL_SCHEMA_VERSION)) {
+      if (resultSet.next()) {
+        result = resultSet.getInt(1);
+      }
+    } catch (SQLException e) {
+      _logger.warn(String.format("could not read MFA_SCHEMA_VERSION: %s", e.getMessage()));
+    }
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("schema version is %d", result));
+    }
+    return result;
+  }
+
+  /**
+   * forgets the resolved datasource helper. The next call to {@link #forConnection(Connection)} resolves it again
+   */
+  public static void reset() {
+    instance = null;
+  }
+
+  /**
+   * @return the dialect of this helper
+   */
+  public DIALECT getDialect() {
+    return dialect;
+  }
+
+  /**
+   * @return the schema version of the datasource, 0 if it could not be read
+   */
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * @return whether the schema has reached {@link #REQUIRED_SCHEMA_VERSION}. Tokens are not validated before
+   */
+  public boolean isSchemaCurrent() {
+    return schemaVersion >= REQUIRED_SCHEMA_VERSION;
+  }
+
+  /**
+   * returns the precomputed query
+   * @param queryType the query to return
+   * @return the query to be used in a prepared statement
+   */
+  public String getQuery(QUERY_TYPE queryType) {
+    return queries.get(queryType);
+  }
+
+  /**
+   * returns the precomputed query
+   * @param queryType the query to return
+   * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
+   * @return the query to be used in a prepared statement
+   */
+  public String getQuery(QUERY_TYPE queryType, boolean limitQuery) {
+    return (limitQuery) ? limitedQueries.get(queryType) : queries.get(queryType);
+  }
+  /**
+   * returns the precomputed audit page query for a combination of filters. Its
+   * parameters are the cursor, the parameters of the filters in the order of
+   * {@link AUDIT_FILTER} and the number of rows
+   * @param filters the filters to apply
+   * @return the query to be used in a prepared statement
+   */
+  public String getAuditSearchQuery(Set<AUDIT_FILTER> filters) {
+    return auditSearchQueries[filterIndex(filters)];
+  }
+
+  /**
+   * returns the precomputed audit export query for a combination of filters. It
+   * reads all matching attempts, oldest first. Its parameters are the parameters
+   * of the filters in the order of {@link AUDIT_FILTER}
+   * @param filters the filters to apply
+   * @return the query to be used in a prepared statement
+   */
+  public String getAuditExportQuery(Set<AUDIT_FILTER> filters) {
+    return auditExportQueries[filterIndex(filters)];
+  }
+
+  /**
+   * the number of rows the driver shall fetch per round trip when a large result is
+   * read from start to end. The MySQL driver reads the whole result into memory unless
+   * it is asked to stream it row by row with Integer.MIN_VALUE
+   * @return the fetch size to set on the statement
+   */
+  public int getStreamingFetchSize() {
+    return (dialect == DIALECT.MYSQL) ? Integer.MIN_VALUE : STREAMING_FETCH_SIZE;
+  }
+
+  /**
+   * binds the values of audit filters, in the order of {@link AUDIT_FILTER}
+   * @param prepStatement the statement to bind the values to
+   * @param parameterIndex the index of the first parameter of the filters
+   * @param filters the filters and their values
+   * @return the index of the parameter after the filters
+   * @throws SQLException when a value could not be bound
+   */
+  public static int bindAuditFilters(PreparedStatement prepStatement, int parameterIndex, EnumMap<AUDIT_FILTER, Object> filters) throws SQLException {
+    for (Object value : filters.values()) {
+      if (value instanceof Boolean) {
+        prepStatement.setBoolean(parameterIndex++, (Boolean) value);
+      } else if (value instanceof Long) {
+        prepStatement.setLong(parameterIndex++, (Long) value);
+      } else {
+        prepStatement.setString(parameterIndex++, (String) value);
+      }
+    }
+    return parameterIndex;
+  }
+
+  /**
+   * @param filters a combination of filters
+   * @return the bits of their ordinals
+   */
+  private static int filterIndex(Set<AUDIT_FILTER> filters) {
+    int index = 0;
+    for (AUDIT_FILTER filter : filters) {
+      index |= 1 << filter.ordinal();
+    }
+    return index;
+  }
+
   /**
    * returns a query that is valid for the database type of the established connection
    * @param connection the connection object we derive the database type from
@@ -103,24 +531,32 @@ public class SqlSelectHelper {
    * @throws SQLException when there was an issue getting the connection details
    */
   public static String getValidQuery(Connection connection, QUERY_TYPE queryType, boolean limitQuery) throws SQLException {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s, limitQuery %s)", "getValidQuery", connection, queryType, limitQuery));
-    }
-    
-    DatabaseMetaData metadata   = connection.getMetaData();
-    String databaseProductName  = metadata.getDatabaseProductName();
+    return forConnection(connection).getQuery(queryType, limitQuery);
+  }
+
+  /**
+   * returns a query that is valid for the database type of the established connection
+   * @param connection the connection object we derive the database type from
+   * @param queryType the query to return
+   * @return the query to be used in a prepared statement
+   * @throws SQLException when there was an issue getting the connection details
+   */
+  public static String getValidQuery(Connection connection, QUERY_TYPE queryType) throws SQLException {
+    return forConnection(connection).getQuery(queryType);
+  }
+
+  /**
+   * builds the final SQL of a query for a dialect
+   * @param dialect the dialect to build the query for
+   * @param queryType the query to build
+   * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
+   * @return the query to be used in a prepared statement
+   */
+  private static String buildQuery(DIALECT dialect, QUERY_TYPE queryType, boolean limitQuery) {
     String result = null;
     
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("Got database type %s", databaseProductName));
-    }
-    
     switch(queryType) {
-      case COUNT_VALIDATION_ATTEMPTS  : {
-        result = SQL_COUNT_VALIDATION_ATTEMPTS;
-        break;
-      }
-      case CREATE_NEW_ACCOUNT                : {
+      case CREATE_NEW_ACCOUNT         : {
         result = SQL_CREATE_NEW_ACCOUNT_QUERY;
         break;
       }
@@ -132,7 +568,7 @@ public class SqlSelectHelper {
         result = SQL_UPDATE_IS_ENABLED_STATUS;
         break;
       }
-      case AUDIT_VALIDATION_ATTEMPT  : {
+      case AUDIT_VALIDATION_ATTEMPT   : {
         result = SQL_INSERT_VALIDATION_ATTEMPT;
         break;
       }
@@ -140,75 +576,116 @@ public class SqlSelectHelper {
         result = SQL_RETRIEVE_PASSWORD_QUERY;
         break;
       }
-      case SINGLE_ACCOUNT_QUERY                 : {
+      case UPDATE_STEP_OFFSET         : {
+        result = SQL_UPDATE_STEP_OFFSET;
+        break;
+      }
+      case ACCEPT_STEP                : {
+        result = SQL_ACCEPT_STEP;
+        break;
+      }
+      case SINGLE_ACCOUNT_QUERY       : {
         result = SQL_SELECT_ACCOUNT;
         break;
       }
-      case ALL_ACCOUNTS_QUERY                : {
-        switch(databaseProductName) {
-          case SQL_PRODUCT_NAME_ORACLE : result = doOracleDbLookup(connection, queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_DB2    : result = doDb2DbLookup(connection,    queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_MSSQL  : result = doMssqlDbLookup(connection,  queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_MYSQL  : result = doMysqlDbLookup(connection,  queryType, limitQuery); break;
-          default: _logger.error("could not determine database product - Probably unsupported database type " + databaseProductName);
-        }
+      case VALIDATION_LOOKUP          : {
+        result = SQL_VALIDATION_LOOKUP;
+        break;
+      }
+      case SELECT_ATTEMPT_COUNTERS    : {
+        result = SQL_SELECT_ATTEMPT_COUNTERS;
+        break;
+      }
+      case LOCK_ATTEMPT_COUNTER       : {
+        result = SQL_LOCK_ATTEMPT_COUNTER;
+        break;
+      }
+      case SWEEP_ATTEMPT_COUNTERS     : {
+        result = SQL_SWEEP_ATTEMPT_COUNTERS;
+        break;
+      }
+      case AUDIT_DAILY_BY_DAY         : {
+        result = SQL_AUDIT_DAILY_BY_DAY;
         break;
       }
-      case AUDIT_QUERY                : {
-        switch(databaseProductName) {
-          case SQL_PRODUCT_NAME_ORACLE : result = doOracleDbLookup(connection, queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_DB2    : result = doDb2DbLookup(connection,    queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_MSSQL  : result = doMssqlDbLookup(connection,  queryType, limitQuery); break;
-          case SQL_PRODUCT_NAME_MYSQL  : result = doMysqlDbLookup(connection,  queryType, limitQuery); break;
-          default: _logger.error("could not determine database product - Probably unsupported database type " + databaseProductName);
+      case AUDIT_DAILY_OF_ACCOUNT     : {
+        result = SQL_AUDIT_DAILY_OF_ACCOUNT;
+        break;
+      }
+      default : {
+        switch(dialect) {
+          case ORACLE : result = doOracleDbLookup(queryType, limitQuery); break;
+          case DB2    : result = doDb2DbLookup(queryType,    limitQuery); break;
+          case MSSQL  : result = doMssqlDbLookup(queryType,  limitQuery); break;
+          case MYSQL  : result = doMysqlDbLookup(queryType,  limitQuery); break;
         }
         break;
       }
     }
     
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getValidQuery", result));
-    }   
     return result;
   }
   
   /**
-   * returns a query that is valid for the database type of the established connection
-   * @param connection the connection object we derive the database type from
-   * @param queryType the query to return
+   * builds the export of the audit, oldest first, for a combination of filters
+   * @param filters the bits of the ordinals of the {@link AUDIT_FILTER}s to apply
    * @return the query to be used in a prepared statement
-   * @throws SQLException when there was an issue getting the connection details
    */
-  public static String getValidQuery(Connection connection, QUERY_TYPE queryType) throws SQLException {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s)", "getValidQuery", connection, queryType));
+  private static String buildAuditExportQuery(int filters) {
+    StringBuilder query = new StringBuilder(SQL_SELECT_AUDIT);
+    String keyword      = " WHERE ";
+    for (AUDIT_FILTER filter : AUDIT_FILTER.values()) {
+      if ((filters & (1 << filter.ordinal())) != 0) {
+        query.append(keyword).append(filter.predicate);
+        keyword = " AND ";
+      }
+    }
+    return query.append(" ORDER BY ID").toString();
+  }
+
+  /**
+   * builds a page of the audit, newest first, for a combination of filters
+   * @param dialect the dialect to build the query for
+   * @param filters the bits of the ordinals of the {@link AUDIT_FILTER}s to apply
+   * @return the query to be used in a prepared statement
+   */
+  private static String buildAuditSearchQuery(DIALECT dialect, int filters) {
+    StringBuilder query = new StringBuilder(SQL_SELECT_AUDIT).append(" WHERE ID < ?");
+    for (AUDIT_FILTER filter : AUDIT_FILTER.values()) {
+      if ((filters & (1 << filter.ordinal())) != 0) {
+        query.append(" AND ").append(filter.predicate);
+      }
+    }
+    query.append(" ORDER BY ID DESC");
+
+    String result = null;
+    switch(dialect) {
+      // ROWNUM is assigned before ORDER BY, the rows have to be sorted in a subquery first
+      case ORACLE : result = "SELECT * FROM (" + query + ") WHERE ROWNUM <= ?"; break;
+      case DB2    : result = query + " fetch first ? rows only"; break;
+      // OFFSET/FETCH instead of TOP, so the parameters are bound in the same order on every database
+      case MSSQL  : result = query + " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY"; break;
+      case MYSQL  : result = query + " LIMIT ?"; break;
     }
-    
-    String result = getValidQuery(connection, queryType, false);
-    
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "getValidQuery", result));
-    }   
     return result;
   }
 
   /**
-   * returns a query that is valid for the database type of the established connection
-   * @param connection the connection object we derive the database type from
+   * returns the dialect specific variant of a query
    * @param queryType the query to return
    * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
    * @return the query to be used in a prepared statement
-   * @throws SQLException when there was an issue getting the connection details
    */
-  private static String doOracleDbLookup(Connection connection, QUERY_TYPE queryType, boolean limitQuery) {
+  private static String doOracleDbLookup(QUERY_TYPE queryType, boolean limitQuery) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s, limitQuery %s)", "doOracleDbLookup", connection, queryType, limitQuery));
+      _logger.debug(String.format("ENTERING method %s(queryType %s, limitQuery %s)", "doOracleDbLookup", queryType, limitQuery));
     }
     String result = null;
     switch(queryType) {
       case AUDIT_QUERY : {
         if(limitQuery) {
-          result = "SELECT ID, ACCESS_TIME, CTS, ACCOUNT_NAME, ACCOUNT_ENABLED, SUCCEEDED FROM MFA_VALIDATION_ATTEMPTS WHERE ROWNUM <= ? ORDER BY ID DESC";
+          // ROWNUM is assigned before ORDER BY, the rows have to be sorted in a subquery first
+          result = "SELECT * FROM (SELECT ID, ACCESS_TIME, CTS, ACCOUNT_NAME, ACCOUNT_ENABLED, SUCCEEDED FROM MFA_VALIDATION_ATTEMPTS ORDER BY ID DESC) WHERE ROWNUM <= ?";
         } else {
           result = "SELECT ID, ACCESS_TIME, CTS, ACCOUNT_NAME, ACCOUNT_ENABLED, SUCCEEDED FROM MFA_VALIDATION_ATTEMPTS ORDER BY ID DESC";
         }
@@ -222,6 +699,35 @@ public class SqlSelectHelper {
         }
         break;
       }
+      case INCREMENT_ATTEMPT_COUNTER : {
+        result = "MERGE INTO MFA_ATTEMPT_COUNTERS C USING (SELECT ? ACCOUNT_NAME, ? WINDOW_START FROM DUAL) S "
+            + "ON (C.ACCOUNT_NAME = S.ACCOUNT_NAME AND C.WINDOW_START = S.WINDOW_START) "
+            + "WHEN MATCHED THEN UPDATE SET C.ATTEMPTS = C.ATTEMPTS + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, WINDOW_START, ATTEMPTS, LOCKOUTS, LOCKED_UNTIL) VALUES (S.ACCOUNT_NAME, S.WINDOW_START, 1, 0, 0)";
+        break;
+      }
+      case INCREMENT_SUCCESS_ROLLUP : {
+        result = "MERGE INTO MFA_SUCCESS_ROLLUP R USING (SELECT ? ACCOUNT_NAME, ? PERIOD_START, ? SUCCEEDED FROM DUAL) S "
+            + "ON (R.ACCOUNT_NAME = S.ACCOUNT_NAME AND R.PERIOD_START = S.PERIOD_START) "
+            + "WHEN MATCHED THEN UPDATE SET R.SUCCEEDED = R.SUCCEEDED + S.SUCCEEDED "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, PERIOD_START, SUCCEEDED) VALUES (S.ACCOUNT_NAME, S.PERIOD_START, S.SUCCEEDED)";
+        break;
+      }
+      case PURGE_VALIDATION_ATTEMPTS : {
+        result = "DELETE FROM MFA_VALIDATION_ATTEMPTS WHERE ACCESS_TIME < ? AND ROWNUM <= ?";
+        break;
+      }
+      case INCREMENT_AUDIT_DAILY : {
+        result = "MERGE INTO MFA_AUDIT_DAILY D USING (SELECT ? ACCOUNT_NAME, ? DAY_START, ? SUCCEEDED, ? FAILED FROM DUAL) S "
+            + "ON (D.DAY_START = S.DAY_START AND D.ACCOUNT_NAME = S.ACCOUNT_NAME) "
+            + "WHEN MATCHED THEN UPDATE SET D.SUCCEEDED = D.SUCCEEDED + S.SUCCEEDED, D.FAILED = D.FAILED + S.FAILED "
+            + "WHEN NOT MATCHED THEN INSERT (DAY_START, ACCOUNT_NAME, SUCCEEDED, FAILED) VALUES (S.DAY_START, S.ACCOUNT_NAME, S.SUCCEEDED, S.FAILED)";
+        break;
+      }
+      case AUDIT_DAILY_BY_ACCOUNT : {
+        result = "SELECT * FROM (" + SQL_AUDIT_DAILY_BY_ACCOUNT + ") WHERE ROWNUM <= ?";
+        break;
+      }
       default:
         _logger.warn("we encountered a queryType that should not have been queried by this tool: " + queryType);
         break;
@@ -234,16 +740,14 @@ public class SqlSelectHelper {
   }
   
   /**
-   * returns a query that is valid for the database type of the established connection
-   * @param connection the connection object we derive the database type from
+   * returns the dialect specific variant of a query
    * @param queryType the query to return
    * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
    * @return the query to be used in a prepared statement
-   * @throws SQLException when there was an issue getting the connection details
    */
-  private static String doDb2DbLookup(Connection connection, QUERY_TYPE queryType, boolean limitQuery) {
+  private static String doDb2DbLookup(QUERY_TYPE queryType, boolean limitQuery) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s, limitQuery %s)", "doDb2DbLookup", connection, queryType, limitQuery));
+      _logger.debug(String.format("ENTERING method %s(queryType %s, limitQuery %s)", "doDb2DbLookup", queryType, limitQuery));
     }
     String result = null;
     switch(queryType) {
@@ -263,6 +767,35 @@ public class SqlSelectHelper {
         }
         break;
       }
+      case INCREMENT_ATTEMPT_COUNTER : {
+        result = "MERGE INTO MFA_ATTEMPT_COUNTERS C USING (VALUES (CAST(? AS VARCHAR(50)), CAST(? AS BIGINT))) AS S(ACCOUNT_NAME, WINDOW_START) "
+            + "ON (C.ACCOUNT_NAME = S.ACCOUNT_NAME AND C.WINDOW_START = S.WINDOW_START) "
+            + "WHEN MATCHED THEN UPDATE SET C.ATTEMPTS = C.ATTEMPTS + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, WINDOW_START, ATTEMPTS, LOCKOUTS, LOCKED_UNTIL) VALUES (S.ACCOUNT_NAME, S.WINDOW_START, 1, 0, 0)";
+        break;
+      }
+      case INCREMENT_SUCCESS_ROLLUP : {
+        result = "MERGE INTO MFA_SUCCESS_ROLLUP R USING (VALUES (CAST(? AS VARCHAR(50)), CAST(? AS BIGINT), CAST(? AS BIGINT))) AS S(ACCOUNT_NAME, PERIOD_START, SUCCEEDED) "
+            + "ON (R.ACCOUNT_NAME = S.ACCOUNT_NAME AND R.PERIOD_START = S.PERIOD_START) "
+            + "WHEN MATCHED THEN UPDATE SET R.SUCCEEDED = R.SUCCEEDED + S.SUCCEEDED "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, PERIOD_START, SUCCEEDED) VALUES (S.ACCOUNT_NAME, S.PERIOD_START, S.SUCCEEDED)";
+        break;
+      }
+      case PURGE_VALIDATION_ATTEMPTS : {
+        result = "DELETE FROM (SELECT ID FROM MFA_VALIDATION_ATTEMPTS WHERE ACCESS_TIME < ? ORDER BY ACCESS_TIME fetch first ? rows only)";
+        break;
+      }
+      case INCREMENT_AUDIT_DAILY : {
+        result = "MERGE INTO MFA_AUDIT_DAILY D USING (VALUES (CAST(? AS VARCHAR(50)), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT))) AS S(ACCOUNT_NAME, DAY_START, SUCCEEDED, FAILED) "
+            + "ON (D.DAY_START = S.DAY_START AND D.ACCOUNT_NAME = S.ACCOUNT_NAME) "
+            + "WHEN MATCHED THEN UPDATE SET D.SUCCEEDED = D.SUCCEEDED + S.SUCCEEDED, D.FAILED = D.FAILED + S.FAILED "
+            + "WHEN NOT MATCHED THEN INSERT (DAY_START, ACCOUNT_NAME, SUCCEEDED, FAILED) VALUES (S.DAY_START, S.ACCOUNT_NAME, S.SUCCEEDED, S.FAILED)";
+        break;
+      }
+      case AUDIT_DAILY_BY_ACCOUNT : {
+        result = SQL_AUDIT_DAILY_BY_ACCOUNT + " fetch first ? rows only";
+        break;
+      }
       default:
         _logger.warn("we encountered a queryType that should not have been queried by this tool: " + queryType);
         break;
@@ -275,16 +808,14 @@ public class SqlSelectHelper {
   }
   
   /**
-   * returns a query that is valid for the database type of the established connection
-   * @param connection the connection object we derive the database type from
+   * returns the dialect specific variant of a query
    * @param queryType the query to return
    * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
    * @return the query to be used in a prepared statement
-   * @throws SQLException when there was an issue getting the connection details
    */
-  private static String doMssqlDbLookup(Connection connection, QUERY_TYPE queryType, boolean limitQuery) {
+  private static String doMssqlDbLookup(QUERY_TYPE queryType, boolean limitQuery) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s, limitQuery %s)", "doMssqlDbLookup", connection, queryType, limitQuery));
+      _logger.debug(String.format("ENTERING method %s(queryType %s, limitQuery %s)", "doMssqlDbLookup", queryType, limitQuery));
     }
     String result = null;
     switch(queryType) {
@@ -305,6 +836,38 @@ public class SqlSelectHelper {
         }
         break;
       }
+      case INCREMENT_ATTEMPT_COUNTER : {
+        // HOLDLOCK keeps two concurrent merges from inserting the same row
+        result = "MERGE INTO MFA_ATTEMPT_COUNTERS WITH (HOLDLOCK) AS C USING (SELECT ? AS ACCOUNT_NAME, ? AS WINDOW_START) AS S "
+            + "ON (C.ACCOUNT_NAME = S.ACCOUNT_NAME AND C.WINDOW_START = S.WINDOW_START) "
+            + "WHEN MATCHED THEN UPDATE SET C.ATTEMPTS = C.ATTEMPTS + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, WINDOW_START, ATTEMPTS, LOCKOUTS, LOCKED_UNTIL) VALUES (S.ACCOUNT_NAME, S.WINDOW_START, 1, 0, 0);";
+        break;
+      }
+      case INCREMENT_SUCCESS_ROLLUP : {
+        result = "MERGE INTO MFA_SUCCESS_ROLLUP WITH (HOLDLOCK) AS R USING (SELECT ? AS ACCOUNT_NAME, ? AS PERIOD_START, ? AS SUCCEEDED) AS S "
+            + "ON (R.ACCOUNT_NAME = S.ACCOUNT_NAME AND R.PERIOD_START = S.PERIOD_START) "
+            + "WHEN MATCHED THEN UPDATE SET R.SUCCEEDED = R.SUCCEEDED + S.SUCCEEDED "
+            + "WHEN NOT MATCHED THEN INSERT (ACCOUNT_NAME, PERIOD_START, SUCCEEDED) VALUES (S.ACCOUNT_NAME, S.PERIOD_START, S.SUCCEEDED);";
+        break;
+      }
+      case PURGE_VALIDATION_ATTEMPTS : {
+        // a subquery instead of DELETE TOP, so the parameters are bound in the same order on every database
+        result = "DELETE FROM MFA_VALIDATION_ATTEMPTS WHERE ID IN (SELECT ID FROM MFA_VALIDATION_ATTEMPTS WHERE ACCESS_TIME < ? "
+            + "ORDER BY ACCESS_TIME OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY)";
+        break;
+      }
+      case INCREMENT_AUDIT_DAILY : {
+        result = "MERGE INTO MFA_AUDIT_DAILY WITH (HOLDLOCK) AS D USING (SELECT ? AS ACCOUNT_NAME, ? AS DAY_START, ? AS SUCCEEDED, ? AS FAILED) AS S "
+            + "ON (D.DAY_START = S.DAY_START AND D.ACCOUNT_NAME = S.ACCOUNT_NAME) "
+            + "WHEN MATCHED THEN UPDATE SET D.SUCCEEDED = D.SUCCEEDED + S.SUCCEEDED, D.FAILED = D.FAILED + S.FAILED "
+            + "WHEN NOT MATCHED THEN INSERT (DAY_START, ACCOUNT_NAME, SUCCEEDED, FAILED) VALUES (S.DAY_START, S.ACCOUNT_NAME, S.SUCCEEDED, S.FAILED);";
+        break;
+      }
+      case AUDIT_DAILY_BY_ACCOUNT : {
+        result = SQL_AUDIT_DAILY_BY_ACCOUNT + " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+        break;
+      }
       default:
         _logger.warn("we encountered a queryType that should not have been queried by this tool: " + queryType);
         break;
@@ -317,16 +880,14 @@ public class SqlSelectHelper {
   }
   
   /**
-   * returns a query that is valid for the database type of the established connection
-   * @param connection the connection object we derive the database type from
+   * returns the dialect specific variant of a query
    * @param queryType the query to return
    * @param limitQuery whether or not this will be a limited query (e.g. returning a number of rows)
    * @return the query to be used in a prepared statement
-   * @throws SQLException when there was an issue getting the connection details
    */
-  private static String doMysqlDbLookup(Connection connection, QUERY_TYPE queryType, boolean limitQuery) {
+  private static String doMysqlDbLookup(QUERY_TYPE queryType, boolean limitQuery) {
     if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(connection %s, queryType %s, limitQuery %s)", "doMysqlDbLookup", connection, queryType, limitQuery));
+      _logger.debug(String.format("ENTERING method %s(queryType %s, limitQuery %s)", "doMysqlDbLookup", queryType, limitQuery));
     }
     String result = null;
     switch(queryType) {
@@ -346,6 +907,29 @@ public class SqlSelectHelper {
         }
         break;
       }
+      case INCREMENT_ATTEMPT_COUNTER : {
+        result = "INSERT INTO MFA_ATTEMPT_COUNTERS(ACCOUNT_NAME, WINDOW_START, ATTEMPTS, LOCKOUTS, LOCKED_UNTIL) VALUES(?,?,1,0,0) "
+            + "ON DUPLICATE KEY UPDATE ATTEMPTS = ATTEMPTS + 1";
+        break;
+      }
+      case INCREMENT_SUCCESS_ROLLUP : {
+        result = "INSERT INTO MFA_SUCCESS_ROLLUP(ACCOUNT_NAME, PERIOD_START, SUCCEEDED) VALUES(?,?,?) "
+            + "ON DUPLICATE KEY UPDATE SUCCEEDED = SUCCEEDED + VALUES(SUCCEEDED)";
+        break;
+      }
+      case PURGE_VALIDATION_ATTEMPTS : {
+        result = "DELETE FROM MFA_VALIDATION_ATTEMPTS WHERE ACCESS_TIME < ? ORDER BY ACCESS_TIME LIMIT ?";
+        break;
+      }
+      case INCREMENT_AUDIT_DAILY : {
+        result = "INSERT INTO MFA_AUDIT_DAILY(ACCOUNT_NAME, DAY_START, SUCCEEDED, FAILED) VALUES(?,?,?,?) "
+            + "ON DUPLICATE KEY UPDATE SUCCEEDED = SUCCEEDED + VALUES(SUCCEEDED), FAILED = FAILED + VALUES(FAILED)";
+        break;
+      }
+      case AUDIT_DAILY_BY_ACCOUNT : {
+        result = SQL_AUDIT_DAILY_BY_ACCOUNT + " LIMIT ?";
+        break;
+      }
       default:
         _logger.warn("we encountered a queryType that should not have been queried by this tool: " + queryType);
         break;
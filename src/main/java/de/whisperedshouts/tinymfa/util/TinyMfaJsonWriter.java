@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import de.whisperedshouts.tinymfa.TinyMfaAccountRecord;
+import de.whisperedshouts.tinymfa.TinyMfaAuditRecord;
+
+/**
+ * Writes audit and account records as JSON, straight to a stream. Records are
+ * written either as objects, with the keys the admin UI reads, or in a
+ * columnar shape that names the columns once and writes every record as an
+ * array of values.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaJsonWriter {
+
+  /**
+   * the keys of an audit record, in the order of the columnar shape
+   */
+  private static final String AUDIT_COLUMNS   = "[\"id\",\"accessTime\",\"cts\",\"account\",\"status\",\"succeeded\"]";
+
+  /**
+   * the keys of an account record, in the order of the columnar shape
+   */
+  private static final String ACCOUNT_COLUMNS = "[\"id\",\"account\",\"enabled\"]";
+
+  /**
+   * the size of the buffer in front of the stream (characters)
+   */
+  private static final int BUFFER_SIZE        = 8192;
+
+  /**
+   * the writer to write to
+   */
+  private final Writer writer;
+
+  /**
+   * creates a writer for a stream. Call {@link #flush()} when done
+   *
+   * @param output
+   *          the stream to write UTF-8 encoded JSON to
+   */
+  public TinyMfaJsonWriter(OutputStream output) {
+    this(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE));
+  }
+
+  /**
+   * creates a writer for a character stream. Call {@link #flush()} when done
+   *
+   * @param writer
+   *          the writer to write to
+   */
+  public TinyMfaJsonWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * writes a page of the audit as an object with the records ("attempts") and
+   * the cursor of the next page ("next"). In the columnar shape, the column
+   * names are written once ("columns") and the records as arrays ("rows")
+   *
+   * @param records
+   *          the records of the page
+   * @param next
+   *          the cursor of the next page, or null
+   * @param columnar
+   *          whether to write the columnar shape
+   * @throws IOException
+   */
+  public void writeAuditPage(List<TinyMfaAuditRecord> records, String next, boolean columnar) throws IOException {
+    writer.write('{');
+    if (columnar) {
+      writer.write("\"columns\":");
+      writer.write(AUDIT_COLUMNS);
+      writer.write(",\"rows\":");
+    } else {
+      writer.write("\"attempts\":");
+    }
+    writeAuditList(records, columnar);
+    writer.write(",\"next\":");
+    if (next == null) {
+      writer.write("null");
+    } else {
+      writer.write('"');
+      writeString(writer, next);
+      writer.write('"');
+    }
+    writer.write('}');
+  }
+
+  /**
+   * writes audit records as a JSON array
+   *
+   * @param records
+   *          the records to write
+   * @param columnar
+   *          whether to write each record as an array instead of an object
+   * @throws IOException
+   */
+  public void writeAuditList(List<TinyMfaAuditRecord> records, boolean columnar) throws IOException {
+    writer.write('[');
+    for (int i = 0; i < records.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      if (columnar) {
+        writeAuditRow(records.get(i));
+      } else {
+        writeAudit(records.get(i));
+      }
+    }
+    writer.write(']');
+  }
+
+  /**
+   * writes accounts as a JSON array of objects. In the columnar shape, an object
+   * with the column names ("columns") and the records as arrays ("rows") is
+   * written instead
+   *
+   * @param records
+   *          the records to write
+   * @param columnar
+   *          whether to write the columnar shape
+   * @throws IOException
+   */
+  public void writeAccounts(List<TinyMfaAccountRecord> records, boolean columnar) throws IOException {
+    if (columnar) {
+      writer.write("{\"columns\":");
+      writer.write(ACCOUNT_COLUMNS);
+      writer.write(",\"rows\":");
+    }
+    writer.write('[');
+    for (int i = 0; i < records.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      TinyMfaAccountRecord record = records.get(i);
+      if (columnar) {
+        writer.write("[\"");
+        writer.write(Long.toString(record.getId()));
+        writer.write("\",\"");
+        writeString(writer, record.getAccountName());
+        writer.write("\",");
+        writer.write(record.isEnabled() ? "true" : "false");
+        writer.write(']');
+      } else {
+        writer.write("{\"id\":\"");
+        writer.write(Long.toString(record.getId()));
+        writer.write("\",\"account\":\"");
+        writeString(writer, record.getAccountName());
+        writer.write("\",\"enabled\":");
+        writer.write(record.isEnabled() ? "true" : "false");
+        writer.write('}');
+      }
+    }
+    writer.write(']');
+    if (columnar) {
+      writer.write('}');
+    }
+  }
+
+  /**
+   * writes an audit record as an object
+   *
+   * @param record
+   *          the record to write
+   * @throws IOException
+   */
+  public void writeAudit(TinyMfaAuditRecord record) throws IOException {
+    writer.write("{\"id\":\"");
+    writer.write(Long.toString(record.getId()));
+    writer.write("\",\"accessTime\":\"");
+    TinyMfaUtil.DATE_FORMATTER.formatTo(Instant.ofEpochMilli(record.getAccessTime()), writer);
+    writer.write("\",\"cts\":\"");
+    writer.write(Long.toString(record.getCts()));
+    writer.write("\",\"account\":\"");
+    writeString(writer, record.getAccountName());
+    writer.write("\",\"status\":");
+    writer.write(record.isAccountEnabled() ? "true" : "false");
+    writer.write(",\"succeeded\":");
+    writer.write(record.isSucceeded() ? "true" : "false");
+    writer.write('}');
+  }
+
+  /**
+   * writes an audit record as an array, in the order of the audit columns
+   *
+   * @param record
+   *          the record to write
+   * @throws IOException
+   */
+  public void writeAuditRow(TinyMfaAuditRecord record) throws IOException {
+    writer.write("[\"");
+    writer.write(Long.toString(record.getId()));
+    writer.write("\",\"");
+    TinyMfaUtil.DATE_FORMATTER.formatTo(Instant.ofEpochMilli(record.getAccessTime()), writer);
+    writer.write("\",\"");
+    writer.write(Long.toString(record.getCts()));
+    writer.write("\",\"");
+    writeString(writer, record.getAccountName());
+    writer.write("\",");
+    writer.write(record.isAccountEnabled() ? "true" : "false");
+    writer.write(',');
+    writer.write(record.isSucceeded() ? "true" : "false");
+    writer.write(']');
+  }
+
+  /**
+   * writes a line break, to separate records of newline delimited JSON
+   *
+   * @throws IOException
+   */
+  public void writeLineBreak() throws IOException {
+    writer.write('\n');
+  }
+
+  /**
+   * flushes everything written so far to the underlying stream
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  /**
+   * writes the content of a JSON string, escaping quotes, backslashes and control characters
+   *
+   * @param writer
+   *          the writer to write to
+   * @param value
+   *          the value to write. null is written as an empty string
+   * @throws IOException
+   */
+  static void writeString(Writer writer, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"'  : writer.write("\\\""); break;
+        case '\\' : writer.write("\\\\"); break;
+        case '\n' : writer.write("\\n"); break;
+        case '\r' : writer.write("\\r"); break;
+        case '\t' : writer.write("\\t"); break;
+        default   : {
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+          break;
+        }
+      }
+    }
+  }
+}
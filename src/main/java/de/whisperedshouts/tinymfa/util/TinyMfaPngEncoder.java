@@ -0,0 +1,291 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a QRCode as a PNG image with a palette of two colors and one bit per
+ * pixel, straight to a stream. A line of the image is built once per module
+ * row and written as often as a module is high, so neither the image nor the
+ * encoded PNG is ever held in memory. Every module becomes a square of the
+ * largest integer size that fits, centered in the image like zxing centers
+ * its output.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaPngEncoder {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger         = Logger.getLogger(TinyMfaPngEncoder.class);
+
+  /**
+   * the signature every PNG file starts with
+   */
+  private static final byte[] PNG_SIGNATURE   = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+  /**
+   * PNG color type: indexed colors, looked up in the palette
+   */
+  private static final int COLOR_TYPE_INDEXED = 3;
+
+  /**
+   * the largest amount of compressed data written into a single IDAT chunk (bytes)
+   */
+  private static final int IDAT_CHUNK_SIZE    = 8192;
+
+  /**
+   * the deflate level used when the plugin setting is missing or invalid
+   */
+  public static final int DEFAULT_DEFLATE_LEVEL = Deflater.BEST_COMPRESSION;
+
+  /**
+   * writes a QRCode as a base64 encoded PNG image. The stream is not closed
+   *
+   * @param modules
+   *          the QRCode, a cell per module
+   * @param width
+   *          the width of the image
+   * @param height
+   *          the height of the image
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param deflateLevel
+   *          the deflate level from 0 (no compression) to 9 (best compression)
+   * @param output
+   *          the stream to write the base64 encoded image to
+   * @throws IOException
+   */
+  public static void writeBase64(BitMatrix modules, int width, int height, int background, int foreground, int deflateLevel, OutputStream output) throws IOException {
+    // closing the base64 stream writes its padding, the stream below has to stay open
+    OutputStream base64Output = Base64.getEncoder().wrap(new FilterOutputStream(output) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    });
+    write(modules, width, height, background, foreground, deflateLevel, base64Output);
+    base64Output.close();
+  }
+
+  /**
+   * writes a QRCode as a PNG image. The stream is not closed
+   *
+   * @param modules
+   *          the QRCode, a cell per module
+   * @param width
+   *          the width of the image
+   * @param height
+   *          the height of the image
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param deflateLevel
+   *          the deflate level from 0 (no compression) to 9 (best compression)
+   * @param output
+   *          the stream to write the image to
+   * @throws IOException
+   */
+  public static void write(BitMatrix modules, int width, int height, int background, int foreground, int deflateLevel, OutputStream output) throws IOException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(width %s, height %s, deflateLevel %s)", "write", width, height, deflateLevel));
+    }
+    if (deflateLevel < Deflater.NO_COMPRESSION || deflateLevel > Deflater.BEST_COMPRESSION) {
+      deflateLevel = DEFAULT_DEFLATE_LEVEL;
+    }
+
+    output.write(PNG_SIGNATURE);
+
+    byte[] header = new byte[13];
+    writeInt(header, 0, width);
+    writeInt(header, 4, height);
+    header[8]  = 1;                  // bit depth
+    header[9]  = COLOR_TYPE_INDEXED; // color type
+    header[10] = 0;                  // deflate
+    header[11] = 0;                  // adaptive filtering
+    header[12] = 0;                  // no interlace
+    writeChunk(output, "IHDR", header, header.length);
+
+    // palette index 0 is the background, index 1 the foreground
+    byte[] palette = {
+        (byte) (background >> 16), (byte) (background >> 8), (byte) background,
+        (byte) (foreground >> 16), (byte) (foreground >> 8), (byte) foreground };
+    writeChunk(output, "PLTE", palette, palette.length);
+
+    int matrixWidth  = modules.getWidth();
+    int matrixHeight = modules.getHeight();
+    int moduleSize   = Math.max(1, Math.min(width / Math.max(1, matrixWidth), height / Math.max(1, matrixHeight)));
+    int leftPadding  = (width - matrixWidth * moduleSize) / 2;
+    int topPadding   = (height - matrixHeight * moduleSize) / 2;
+
+    // a line starts with its filter type, 0 (none), followed by 8 pixels per byte
+    byte[] emptyLine = new byte[1 + (width + 7) / 8];
+    byte[] line      = new byte[emptyLine.length];
+    Deflater deflater = new Deflater(deflateLevel);
+    try {
+      DeflaterOutputStream imageData = new DeflaterOutputStream(new IdatOutputStream(output), deflater, IDAT_CHUNK_SIZE);
+      int y = 0;
+      for (int yModule = 0; yModule < matrixHeight && y < height; yModule++) {
+        int top    = Math.max(0, topPadding + yModule * moduleSize);
+        int bottom = Math.min(height, topPadding + (yModule + 1) * moduleSize);
+        if (top >= bottom) {
+          continue;
+        }
+        for (; y < top; y++) {
+          imageData.write(emptyLine);
+        }
+        Arrays.fill(line, (byte) 0);
+        for (int xModule = 0; xModule < matrixWidth; xModule++) {
+          if (modules.get(xModule, yModule)) {
+            int left  = Math.max(0, leftPadding + xModule * moduleSize);
+            int right = Math.min(width, leftPadding + (xModule + 1) * moduleSize);
+            for (int x = left; x < right; x++) {
+              line[1 + (x >> 3)] |= 0x80 >>> (x & 7);
+            }
+          }
+        }
+        for (; y < bottom; y++) {
+          imageData.write(line);
+        }
+      }
+      for (; y < height; y++) {
+        imageData.write(emptyLine);
+      }
+      imageData.finish();
+      imageData.flush();
+    } finally {
+      deflater.end();
+    }
+
+    writeChunk(output, "IEND", new byte[0], 0);
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s", "write"));
+    }
+  }
+
+  /**
+   * writes a chunk: its length, its type, its data and the CRC of type and data
+   *
+   * @param output
+   *          the stream to write to
+   * @param type
+   *          the four letter type of the chunk
+   * @param data
+   *          the data of the chunk
+   * @param length
+   *          the number of bytes of data to write
+   * @throws IOException
+   */
+  private static void writeChunk(OutputStream output, String type, byte[] data, int length) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    byte[] number    = new byte[4];
+    CRC32 crc        = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+
+    writeInt(number, 0, length);
+    output.write(number);
+    output.write(typeBytes);
+    output.write(data, 0, length);
+    writeInt(number, 0, (int) crc.getValue());
+    output.write(number);
+  }
+
+  /**
+   * writes an int in network byte order, as PNG stores numbers
+   *
+   * @param buffer
+   *          the buffer to write to
+   * @param offset
+   *          where to write the int
+   * @param value
+   *          the int to write
+   */
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset]     = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  /**
+   * collects compressed image data and writes it as IDAT chunks of at most
+   * {@link TinyMfaPngEncoder#IDAT_CHUNK_SIZE} bytes
+   */
+  private static class IdatOutputStream extends OutputStream {
+
+    /**
+     * the stream the chunks are written to
+     */
+    private final OutputStream output;
+
+    /**
+     * the data of the next chunk
+     */
+    private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+
+    /**
+     * the number of bytes in the buffer
+     */
+    private int count           = 0;
+
+    IdatOutputStream(OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flush();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          flush();
+        }
+        int copied = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, copied);
+        count += copied;
+        off   += copied;
+        len   -= copied;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (count > 0) {
+        writeChunk(output, "IDAT", buffer, count);
+        count = 0;
+      }
+    }
+  }
+}
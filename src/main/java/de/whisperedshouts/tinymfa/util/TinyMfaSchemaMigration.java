@@ -0,0 +1,311 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import de.whisperedshouts.tinymfa.util.SqlSelectHelper.DIALECT;
+
+/**
+ * Brings the schema of the plugin datasource up to
+ * {@link SqlSelectHelper#REQUIRED_SCHEMA_VERSION}. Every schema version has a
+ * script per database, db/upgrade/&lt;from&gt;_to_&lt;to&gt;.&lt;database&gt;,
+ * whose last statement records the version in MFA_SCHEMA_VERSION. Only the
+ * scripts above MAX(VERSION_ID) are applied, one version after the other, so
+ * running the migration again does nothing and a migration that stopped
+ * resumes with the version it stopped at.
+ * <p>
+ * Each script runs in a transaction. SQL Server and DB2 roll back a failed
+ * script completely. Oracle and MySQL commit every DDL statement on their
+ * own, so there the number of statements applied is kept in
+ * MFA_SCHEMA_PROGRESS and the next attempt continues after them.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaSchemaMigration {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaSchemaMigration.class);
+
+  /**
+   * where the scripts are found on the classpath
+   */
+  private static final String SCRIPT_LOCATION = "/db/upgrade/";
+
+  /**
+   * SQL Query: the table remembering how far a script got on databases without transactional DDL
+   */
+  private static final String SQL_CREATE_PROGRESS = "CREATE TABLE MFA_SCHEMA_PROGRESS (VERSION_ID INT NOT NULL, STATEMENTS_DONE INT NOT NULL, PRIMARY KEY(VERSION_ID))";
+
+  /**
+   * SQL Query: the number of statements of a script that have been applied
+   */
+  private static final String SQL_SELECT_PROGRESS = "SELECT STATEMENTS_DONE FROM MFA_SCHEMA_PROGRESS WHERE VERSION_ID=?";
+
+  /**
+   * SQL Query: start to track a script
+   */
+  private static final String SQL_INSERT_PROGRESS = "INSERT INTO MFA_SCHEMA_PROGRESS(VERSION_ID, STATEMENTS_DONE) VALUES(?,0)";
+
+  /**
+   * SQL Query: record the number of statements of a script that have been applied
+   */
+  private static final String SQL_UPDATE_PROGRESS = "UPDATE MFA_SCHEMA_PROGRESS SET STATEMENTS_DONE=? WHERE VERSION_ID=?";
+
+  /**
+   * applies the pending versions
+   *
+   * @param connection
+   *          a connection to the plugin datasource. Its auto commit mode is restored afterwards
+   * @param dialect
+   *          the dialect of the datasource
+   * @param schemaVersion
+   *          the current schema version, 0 if MFA_SCHEMA_VERSION does not exist yet
+   * @return the schema version after the migration
+   */
+  static int migrate(Connection connection, DIALECT dialect, int schemaVersion) {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(dialect %s, schemaVersion %s)", "migrate", dialect, schemaVersion));
+    }
+    int version = schemaVersion;
+    while (version < SqlSelectHelper.REQUIRED_SCHEMA_VERSION) {
+      String script = String.format("%d_to_%d.%s", version, version + 1, dialect.getScriptSuffix());
+      _logger.info(String.format("schema version is %d, applying %s", version, script));
+      try {
+        apply(connection, dialect, version + 1, script);
+      } catch (Exception e) {
+        _logger.error(String.format("could not apply %s: %s", script, e.getMessage()));
+      }
+
+      // another node may have migrated meanwhile, the recorded version is what counts
+      int appliedVersion = SqlSelectHelper.readSchemaVersion(connection);
+      if (appliedVersion <= version) {
+        _logger.error(String.format("schema version is still %d, no token is validated until %s has been completed", appliedVersion, script));
+        break;
+      }
+      version = appliedVersion;
+    }
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (returns: %s)", "migrate", version));
+    }
+    return version;
+  }
+
+  /**
+   * runs a script in a single transaction. Without transactional DDL, the
+   * statements applied by an earlier attempt are skipped and every statement
+   * is recorded once it has been applied
+   *
+   * @param connection
+   *          the connection to run the script on
+   * @param dialect
+   *          the dialect of the datasource
+   * @param targetVersion
+   *          the version the script migrates to
+   * @param script
+   *          the name of the script
+   * @throws IOException
+   *           when the script cannot be read
+   * @throws SQLException
+   *           when a statement fails. The message names the statement
+   */
+  private static void apply(Connection connection, DIALECT dialect, int targetVersion, String script) throws IOException, SQLException {
+    List<String> statements = readStatements(script);
+    boolean autoCommit      = connection.getAutoCommit();
+    boolean trackProgress   = !dialect.hasTransactionalDdl();
+    Statement statement     = null;
+    int statementNumber     = 0;
+    try {
+      connection.setAutoCommit(false);
+      if (trackProgress) {
+        statementNumber = readProgress(connection, targetVersion);
+        if (statementNumber > 0) {
+          _logger.info(String.format("%s has been applied up to statement %d, continuing after it", script, statementNumber));
+        }
+      }
+      statement = connection.createStatement();
+      while (statementNumber < statements.size()) {
+        statementNumber++;
+        statement.execute(statements.get(statementNumber - 1));
+        if (trackProgress) {
+          writeProgress(connection, targetVersion, statementNumber);
+          connection.commit();
+        }
+      }
+      connection.commit();
+      _logger.info(String.format("applied %s (%d statements)", script, statements.size()));
+    } catch (SQLException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException rollbackException) {
+        _logger.error(rollbackException.getMessage());
+      }
+      if (statement == null) {
+        throw e;
+      }
+      throw new SQLException(String.format("statement %d of %d failed (%s): %s", statementNumber, statements.size(),
+          statements.get(statementNumber - 1), e.getMessage()), e);
+    } finally {
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          _logger.error(e.getMessage());
+        }
+      }
+      connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * reads how many statements of a script have been applied, creating the
+   * progress table and the row of the script if they do not exist yet
+   *
+   * @param connection
+   *          the connection to read with, not in auto commit mode
+   * @param targetVersion
+   *          the version the script migrates to
+   * @return the number of statements that have been applied
+   * @throws SQLException
+   *           when the progress cannot be read or created
+   */
+  private static int readProgress(Connection connection, int targetVersion) throws SQLException {
+    Integer result = null;
+    try {
+      result = selectProgress(connection, targetVersion);
+    } catch (SQLException e) {
+      // the first migration on this database
+      connection.rollback();
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute(SQL_CREATE_PROGRESS);
+      } finally {
+        statement.close();
+      }
+    }
+    if (result == null) {
+      PreparedStatement prepStatement = connection.prepareStatement(SQL_INSERT_PROGRESS);
+      try {
+        prepStatement.setInt(1, targetVersion);
+        prepStatement.executeUpdate();
+      } finally {
+        prepStatement.close();
+      }
+      result = 0;
+    }
+    connection.commit();
+    return result;
+  }
+
+  /**
+   * @param connection
+   *          the connection to read with
+   * @param targetVersion
+   *          the version the script migrates to
+   * @return the number of statements applied, null if the script is not tracked yet
+   * @throws SQLException
+   *           when MFA_SCHEMA_PROGRESS cannot be read
+   */
+  private static Integer selectProgress(Connection connection, int targetVersion) throws SQLException {
+    Integer result                  = null;
+    PreparedStatement prepStatement = connection.prepareStatement(SQL_SELECT_PROGRESS);
+    try {
+      prepStatement.setInt(1, targetVersion);
+      ResultSet resultSet = prepStatement.executeQuery();
+      try {
+        if (resultSet.next()) {
+          result = resultSet.getInt(1);
+        }
+      } finally {
+        resultSet.close();
+      }
+    } finally {
+      prepStatement.close();
+    }
+    return result;
+  }
+
+  /**
+   * records the number of statements of a script that have been applied. The
+   * caller commits
+   *
+   * @param connection
+   *          the connection to write with
+   * @param targetVersion
+   *          the version the script migrates to
+   * @param statementsDone
+   *          the number of statements applied
+   * @throws SQLException
+   *           when the progress cannot be written
+   */
+  private static void writeProgress(Connection connection, int targetVersion, int statementsDone) throws SQLException {
+    PreparedStatement prepStatement = connection.prepareStatement(SQL_UPDATE_PROGRESS);
+    try {
+      prepStatement.setInt(1, statementsDone);
+      prepStatement.setInt(2, targetVersion);
+      prepStatement.executeUpdate();
+    } finally {
+      prepStatement.close();
+    }
+  }
+
+  /**
+   * reads the statements of a script. Lines starting with -- are comments, a
+   * statement ends with a semicolon at the end of a line
+   *
+   * @param script
+   *          the name of the script
+   * @return the statements, without their semicolons
+   * @throws IOException
+   *           when the script does not exist or cannot be read
+   */
+  static List<String> readStatements(String script) throws IOException {
+    InputStream input = TinyMfaSchemaMigration.class.getResourceAsStream(SCRIPT_LOCATION + script);
+    if (input == null) {
+      throw new IOException("missing migration script " + script);
+    }
+    List<String> statements = new ArrayList<>();
+    StringBuilder current   = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+          continue;
+        }
+        if (current.length() > 0) {
+          current.append('\n');
+        }
+        if (trimmed.endsWith(";")) {
+          current.append(line, 0, line.lastIndexOf(';'));
+          statements.add(current.toString());
+          current.setLength(0);
+        } else {
+          current.append(line);
+        }
+      }
+    }
+    if (current.toString().trim().length() > 0) {
+      statements.add(current.toString());
+    }
+    return statements;
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a QRCode as an SVG image, straight from its modules. Dark modules
+ * next to each other in a row are merged into a single rectangle, and all
+ * rectangles go into a single path, measured in modules. The image scales to
+ * any size without blurring and nothing is rasterized on the server.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaSvgEncoder {
+
+  /**
+   * a logger object. Make use of it!
+   */
+  private static final Logger _logger = Logger.getLogger(TinyMfaSvgEncoder.class);
+
+  /**
+   * the size of the buffer in front of the stream (characters)
+   */
+  private static final int BUFFER_SIZE = 4096;
+
+  /**
+   * writes a QRCode as an SVG image. The stream is not closed
+   *
+   * @param modules
+   *          the QRCode, a cell per module
+   * @param size
+   *          the width and height the image is displayed with by default
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param output
+   *          the stream to write the UTF-8 encoded image to
+   * @throws IOException
+   */
+  public static void write(BitMatrix modules, int size, int background, int foreground, OutputStream output) throws IOException {
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("ENTERING method %s(size %s)", "write", size));
+    }
+    int matrixWidth  = modules.getWidth();
+    int matrixHeight = modules.getHeight();
+    int runs         = 0;
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE);
+    writer.write(String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%1$d\" height=\"%1$d\" viewBox=\"0 0 %2$d %3$d\" shape-rendering=\"crispEdges\">",
+        size, matrixWidth, matrixHeight));
+    writer.write(String.format("<rect width=\"100%%\" height=\"100%%\" fill=\"#%06x\"/>", background & 0xFFFFFF));
+    writer.write(String.format("<path fill=\"#%06x\" d=\"", foreground & 0xFFFFFF));
+    for (int y = 0; y < matrixHeight; y++) {
+      for (int x = 0; x < matrixWidth; x++) {
+        if (!modules.get(x, y)) {
+          continue;
+        }
+        int runEnd = x + 1;
+        while (runEnd < matrixWidth && modules.get(runEnd, y)) {
+          runEnd++;
+        }
+        // a rectangle of a module's height, as long as the run
+        writer.write('M');
+        writer.write(Integer.toString(x));
+        writer.write(' ');
+        writer.write(Integer.toString(y));
+        writer.write('h');
+        writer.write(Integer.toString(runEnd - x));
+        writer.write("v1H");
+        writer.write(Integer.toString(x));
+        writer.write('z');
+        runs++;
+        x = runEnd;
+      }
+    }
+    writer.write("\"/></svg>");
+    writer.flush();
+
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(String.format("LEAVING method %s (runs: %s)", "write", runs));
+    }
+  }
+}
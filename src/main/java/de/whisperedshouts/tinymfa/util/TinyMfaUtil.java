@@ -3,23 +3,13 @@
  */
 package de.whisperedshouts.tinymfa.util;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Base64;
-import java.util.Date;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 import org.apache.log4j.Logger;
 
 import com.google.zxing.BarcodeFormat;
@@ -45,233 +35,124 @@ public class TinyMfaUtil {
    * The date format to be used when formatting dates
    */
   public static final String DATE_FORMAT  = "yyyy-MM-dd HH:mm:ss z";
- 
-  /**
-   * builds a Map containing account information from a resultSet
-   * 
-   * @param resultSet
-   *          the resultset to get the information form
-   * @return the Map containing the account information
-   * @throws SQLException
-   *           when there was an error with the result set
-   */
-  public static Map<String, Object> buildAccountObjectMap(ResultSet resultSet) throws SQLException {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(resultSet %s)", "buildAccountObjectMap", resultSet));
-    }
-    String id           = resultSet.getString(1);
-    String accountName  = resultSet.getString(2);
-    boolean isEnabled   = resultSet.getBoolean(3);
 
-    Map<String, Object> accountObject = new HashMap<>();
-    accountObject.put("id", id);
-    accountObject.put("account", accountName);
-    accountObject.put("enabled", isEnabled);
-    
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "buildAccountObjectMap", accountObject));
-    }    
-    return accountObject;
-  }
-  
   /**
-   * builds a Map with audit information
-   * 
-   * @param resultSet
-   *          the resultset to get the information from
-   * @return Map containing the audit information
-   * @throws SQLException
-   *           when we hit an issue with the result set
+   * formats dates with {@link #DATE_FORMAT} in the time zone of the server. Thread safe, so a
+   * single instance serves every request
    */
-  public static Map<String, Object> buildAuditObjectMap(ResultSet resultSet) throws SQLException {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(resultSet %s)", "buildAuditObjectMap", resultSet));
-    }
-    String id           = resultSet.getString(1);
-    long accessTime     = resultSet.getLong(2);
-    String cts          = resultSet.getString(3);
-    String accountName  = resultSet.getString(4);
-    boolean isEnabled   = resultSet.getBoolean(5);
-    boolean succeeded   = resultSet.getBoolean(6);
-
-    Map<String, Object> auditObject = new HashMap<>();
-    auditObject.put("id", id);
-    auditObject.put("account", accountName);
-    auditObject.put("status", isEnabled);
-    auditObject.put("accessTime", formatAccessTime(accessTime));
-    auditObject.put("cts", cts);
-    auditObject.put("succeeded", succeeded);
-    
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "buildAuditObjectMap", auditObject));
-    }
-    return auditObject;
-  }
-  
+  public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT).withZone(ZoneId.systemDefault());
+ 
   /**
-   * formats the accesstime to a String object
-   * 
-   * @param accessTime
-   *          the long representing the date
-   * @return a formatted String
+   * the width and height of a generated QRCode image (pixels)
    */
-  private static Object formatAccessTime(long accessTime) {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(
-          String.format("ENTERING method %s(accessTime %s)", "formatAccessTime", accessTime));
-    }
-    String result = String.valueOf(accessTime);
-    try {
-      SimpleDateFormat sdf  = new SimpleDateFormat(TinyMfaUtil.DATE_FORMAT);
-      Date accessTimeDate   = new Date(accessTime);
-      
-      result = sdf.format(accessTimeDate);
-    } catch(Exception e) {
-      _logger.error(e.getMessage());
-    }
-    
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("LEAVING method %s (returns: %s)", "formatAccessTime", result));
-    }
-    return result;
-  }
+  public static final int QRCODE_SIZE = 300;
 
   /**
-   * Generates a QRCode image in PNG format with the supplied payload, then
-   * encodes it to base64
-   * 
-   * @param qrCodePayload
-   *          the payload that the QRCode shall carry
-   * @param bgColorHex
-   *          the background color of the QECode. Hexadecimal representation
-   * @param fgColorHex
-   *          the foreground color of the QECode. Hexadecimal representation
-   * @return the base64 encoded QRCode image.png
+   * the formats a QRCode can be written in
    */
-  public static String generateBase64EncodedQrcode(String qrCodePayload, String bgColorHex, String fgColorHex) {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(qrCodePayload %s, bgColorHex %s, fgColorHex %s)", "generateBase64EncodedQrcode", qrCodePayload, bgColorHex, fgColorHex));
-    }
-    String qrCode   = null;
-    int width       = 300;
-    int height      = 300;
-    String fileType = "png";
-    
-    try {
-      Map<EncodeHintType, Object> hintMap = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
-      hintMap.put(EncodeHintType.CHARACTER_SET, "UTF-8");
-      
-      // Now with zxing version 3.2.1 you could change border size (white border size to just 1)
-      hintMap.put(EncodeHintType.MARGIN, 1); // default = 4
-      hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
-
-      QRCodeWriter qrCodeWriter = new QRCodeWriter();
-      BitMatrix mitMatrix       = qrCodeWriter.encode(qrCodePayload, BarcodeFormat.QR_CODE, width, height, hintMap);
-      
-      BufferedImage image = TinyMfaUtil.generateQrcodeGraphics(width, height, bgColorHex, fgColorHex, mitMatrix);
-      
-      qrCode = TinyMfaUtil.encodeImageToBase64String(fileType, image);
-      
-
-    } catch (IOException e) {
-      _logger.error(e.getMessage());
-    } catch (WriterException e) {
-      _logger.error(e.getMessage());
-    }
-    
-    if (_logger.isDebugEnabled()) {
-      if(_logger.isTraceEnabled()) {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "generateBase64EncodedQrcode", qrCode));
-      } else {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "generateBase64EncodedQrcode", "*** (masked)"));
+  public static enum QRCODE_FORMAT {
+    /** a PNG image, base64 encoded */
+    BASE64("text/plain", "txt"),
+    /** a PNG image */
+    PNG("image/png", "png"),
+    /** an SVG image, scales to any size */
+    SVG("image/svg+xml", "svg");
+
+    /**
+     * the media type of the response
+     */
+    private final String mediaType;
+
+    /**
+     * the file extension of a download
+     */
+    private final String extension;
+
+    private QRCODE_FORMAT(String mediaType, String extension) {
+      this.mediaType = mediaType;
+      this.extension = extension;
+    }
+
+    /**
+     * @return the media type of the response
+     */
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    /**
+     * @return the file extension of a download
+     */
+    public String getExtension() {
+      return extension;
+    }
+
+    /**
+     * returns the format for a request parameter like "base64", "png" or "svg"
+     * @param value the value of the request parameter
+     * @return the matching format, or null if the value is unknown
+     */
+    public static QRCODE_FORMAT fromParameter(String value) {
+      QRCODE_FORMAT result = null;
+      if (value != null) {
+        for (QRCODE_FORMAT format : values()) {
+          if (format.name().equalsIgnoreCase(value.trim())) {
+            result = format;
+          }
+        }
       }
-    } 
-    return qrCode;
+      return result;
+    }
   }
 
   /**
-   * encodes a BufferedImage to base64
+   * writes a QRCode in the given format. The stream is not closed
    * 
-   * @param fileType
-   *          type to use when writing the image (i.E. png)
-   * @param image
-   *          the BufferedImage to encode
+   * @param format
+   *          the format to write
+   * @param modules
+   *          the QRCode, a cell per module, as returned by {@link #encodeQrcode(String)}
+   * @param background
+   *          the background color (RGB)
+   * @param foreground
+   *          the foreground color (RGB)
+   * @param deflateLevel
+   *          the deflate level of PNG images, from 0 (no compression) to 9 (best compression)
+   * @param output
+   *          the stream to write to
    * @throws IOException
-   *           when there was an issue while converting the Image
-   * @return the base64 encoded representation of the image
-   * @throws IOException when there was an issue
+   *           when the stream cannot be written
    */
-  public static String encodeImageToBase64String(String fileType, BufferedImage image) throws IOException {
-    if (_logger.isDebugEnabled()) {
-      _logger.debug(String.format("ENTERING method %s(fileType %s, image %s)", "encodeImageToBase64String", fileType, image));
-    }
-    String result  = null;
-    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-    OutputStream base64OutputStream = Base64.getEncoder().wrap(outStream);
-    ImageIO.write(image, fileType, base64OutputStream);
- 
-    base64OutputStream.close();
-    result = outStream.toString();
-    outStream.close();
-    
-    if (_logger.isDebugEnabled()) {
-      if(_logger.isTraceEnabled()) {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "encodeImageToBase64String", result));
-      } else {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "encodeImageToBase64String", "*** (masked)"));
-      }
+  public static void writeQrcode(QRCODE_FORMAT format, BitMatrix modules, int background, int foreground, int deflateLevel, OutputStream output) throws IOException {
+    switch (format) {
+      case PNG    : TinyMfaPngEncoder.write(modules, QRCODE_SIZE, QRCODE_SIZE, background, foreground, deflateLevel, output); break;
+      case SVG    : TinyMfaSvgEncoder.write(modules, QRCODE_SIZE, background, foreground, output); break;
+      default     : TinyMfaPngEncoder.writeBase64(modules, QRCODE_SIZE, QRCODE_SIZE, background, foreground, deflateLevel, output); break;
     }
-    return result;
   }
 
   /**
-   * generates a QRCode image with the supplied width, height and Bitmatrix
+   * encodes a payload as a QRCode, with a cell per module and a quiet zone of a
+   * single module. {@link TinyMfaPngEncoder} and {@link TinyMfaSvgEncoder}
+   * scale it to the size of the image
    * 
-   * @param width
-   *          the width of the QRCode
-   * @param height
-   *          the height of the QRCode
-   * @param bgColorHex
-   *          the background color of the QECode. Hexadecimal representation
-   * @param fgColorHex
-   *          the foreground color of the QECode. Hexadecimal representation
-   * @param bitMatrix
-   *          the bitMatrix representing the QRCode's payload
-   * @return a BufferedImage containing the QRCode
+   * @param qrCodePayload
+   *          the payload that the QRCode shall carry
+   * @return the modules of the QRCode
+   * @throws WriterException
+   *           when the payload cannot be encoded
    */
-  public static BufferedImage generateQrcodeGraphics(int width, int height, String bgColorHex, String fgColorHex, BitMatrix bitMatrix) {
-    if (_logger.isDebugEnabled()) {
-      if(_logger.isTraceEnabled()) {
-        _logger.debug(String.format("ENTERING method %s(width %s, height %s, bgColorHex %s, fgColorHex %s, bitMatrix %s)", "generateQrcodeGraphics", width, height, bgColorHex, fgColorHex, bitMatrix));
-      } else {
-        _logger.debug(String.format("ENTERING method %s(width %s, height %s, bgColorHex %s, fgColorHex %s, bitMatrix %s)", "generateQrcodeGraphics", width, height, bgColorHex, fgColorHex, "*** (masked)"));
-      }
-    }
+  public static BitMatrix encodeQrcode(String qrCodePayload) throws WriterException {
+    Map<EncodeHintType, Object> hintMap = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
+    hintMap.put(EncodeHintType.CHARACTER_SET, "UTF-8");
     
-    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-    image.createGraphics();
+    // Now with zxing version 3.2.1 you could change border size (white border size to just 1)
+    hintMap.put(EncodeHintType.MARGIN, 1); // default = 4
+    hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
 
-    Graphics2D graphics = (Graphics2D) image.getGraphics();
-    graphics.setColor(Color.decode(bgColorHex));
-    graphics.fillRect(0, 0, width, height);
-    graphics.setColor(Color.decode(fgColorHex));
-
-    for (int xPosition = 0; xPosition < width; xPosition++) {
-      for (int yPosition = 0; yPosition < height; yPosition++) {
-        if (bitMatrix.get(xPosition, yPosition)) {
-          graphics.fillRect(xPosition, yPosition, 1, 1);
-        }
-      }
-    }
-    
-    if (_logger.isDebugEnabled()) {
-      if(_logger.isTraceEnabled()) {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "generateQrcodeGraphics", image));
-      } else {
-        _logger.debug(String.format("LEAVING method %s (returns: %s)", "generateQrcodeGraphics", "*** (masked)"));
-      }
-    }
-    return image;
+    // a pixel per module, scaled to the image exactly as zxing would scale it
+    QRCodeWriter qrCodeWriter = new QRCodeWriter();
+    return qrCodeWriter.encode(qrCodePayload, BarcodeFormat.QR_CODE, 0, 0, hintMap);
   }
 
   /**
@@ -294,73 +294,87 @@
     $scope.headline       = 'Tiny Multifactor Authentication - Audits';
     $scope.currentPage    = 1;
     $scope.numberLimit    = 10;
-    $scope.start          = 0;
-    $scope.maxNumber      = 100;
     $scope.validations    = [];
     $scope.numberLimits   = [5,10,25,50,100];
     $scope.errorMessage   = null;
     $scope.successMessage = null;
-    
-    $scope.$watch('numberLimit',function(newVal){
-      if(newVal){
-        $scope.pages=Math.ceil($scope.validations.length/$scope.numberLimit);
-      }
-    });
-
-    $scope.$watch('maxNumber',function(newVal){
-      if(newVal){
-        $scope.getValidationAttempts($scope.maxNumber);
-        $scope.pages=Math.ceil($scope.validations.length/$scope.numberLimit);
+    // the cursor of the page on display, the cursors of the pages before it and the cursor of the next page
+    $scope.cursor          = null;
+    $scope.previousCursors = [];
+    $scope.nextCursor      = null;
+    // filters are applied by the server. Empty values are not sent
+    $scope.filters         = { account : '', from : null, to : null, enabled : '', succeeded : '' };
+
+    $scope.$watch('numberLimit',function(newVal, oldVal){
+      if(newVal && newVal !== oldVal){
+        $scope.firstPage();
       }
     });
 
-    $scope.$watch('validations',function(newVal){
-      if(newVal){
-        $scope.pages=Math.ceil($scope.validations.length/$scope.numberLimit);
+    $scope.$watch('filters',function(newVal, oldVal){
+      if(newVal !== oldVal){
+        $scope.firstPage();
       }
-    });
+    }, true);
 
     $scope.hideNext=function(){
-      if(($scope.start + $scope.numberLimit) < $scope.validations.length){
-        return false;
-      }
-      else 
-        return true;
+      return $scope.nextCursor === null;
     };
 
     $scope.hidePrev=function(){
-      if($scope.start===0){
-        return true;
-      }
-      else 
-        return false;
+      return $scope.previousCursors.length === 0;
+    };
+
+    $scope.firstPage=function(){
+      $scope.currentPage     = 1;
+      $scope.previousCursors = [];
+      $scope.getValidationAttempts(null);
     };
 
     $scope.nextPage=function(){
-      console.log("next pages");
       $scope.currentPage++;
-      $scope.start=$scope.start+ $scope.numberLimit;
-      console.log( $scope.start)
+      $scope.previousCursors.push($scope.cursor);
+      $scope.getValidationAttempts($scope.nextCursor);
     };
 
     $scope.PrevPage=function(){
       if($scope.currentPage>1){
         $scope.currentPage--;
       }
-      console.log("next pages");
-      $scope.start=$scope.start - $scope.numberLimit;
-      console.log( $scope.start)
+      $scope.getValidationAttempts($scope.previousCursors.pop());
     };
     
-    $scope.getValidationAttempts = function() {
+    $scope.getValidationAttempts = function(cursor) {
+      var params = { size : $scope.numberLimit };
+      if(cursor !== null && cursor !== undefined) {
+        params.before = cursor;
+      }
+      if($scope.filters.account) {
+        params.account = $scope.filters.account;
+      }
+      if($scope.filters.from) {
+        params.from = $scope.filters.from.getTime();
+      }
+      if($scope.filters.to) {
+        params.to = $scope.filters.to.getTime();
+      }
+      if($scope.filters.enabled !== '') {
+        params.enabled = $scope.filters.enabled;
+      }
+      if($scope.filters.succeeded !== '') {
+        params.succeeded = $scope.filters.succeeded;
+      }
       $http({
         method  : "GET",
         withCredentials: true,
         xsrfHeaderName : "X-XSRF-TOKEN",
         xsrfCookieName : "CSRF-TOKEN",
-        url : PluginHelper.getPluginRestUrl('tiny-mfa') + '/audit/' + $scope.maxNumber
+        url : PluginHelper.getPluginRestUrl('tiny-mfa') + '/audit',
+        params : params
       }).then(function mySuccess(response) {
-        $scope.validations = response.data;
+        $scope.cursor      = cursor;
+        $scope.validations = response.data.attempts;
+        $scope.nextCursor  = response.data.next;
 
       }, function myError(response) {
         $scope.errorMessage = "There was an issue loading the audit information";
@@ -371,7 +385,7 @@
     };
 
     try {
-      $scope.getValidationAttempts($scope.maxNumber);
+      $scope.firstPage();
     }catch(error) {
 
     }
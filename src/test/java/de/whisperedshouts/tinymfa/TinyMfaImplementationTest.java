@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Checks the hand-rolled HMAC-SHA1 of {@link TinyMfaImplementation} against the
+ * test vectors of RFC 4226 (Appendix D) and RFC 6238 (Appendix B, SHA-1), with
+ * both overloads of computeToken: the decoded key on the heap and the key
+ * handle reading from the secret store. Keys of other lengths, above all longer
+ * than the hmac block, are compared with {@link Mac}.
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaImplementationTest {
+
+  /**
+   * the secret of both RFCs, "12345678901234567890" in ASCII
+   */
+  private static final byte[] RFC_SECRET = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * RFC 4226 Appendix D: the HOTP values of the counters 0 to 9
+   */
+  private static final int[] RFC4226_TOKENS = { 755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489 };
+
+  /**
+   * RFC 6238 Appendix B: the unix times of the SHA-1 vectors
+   */
+  private static final long[] RFC6238_TIMES = { 59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L };
+
+  /**
+   * RFC 6238 Appendix B: the 8 digit SHA-1 TOTP values of these times. The plugin uses the last 6 digits
+   */
+  private static final int[] RFC6238_TOKENS = { 94287082, 7081804, 14050471, 89005924, 69279037, 65353130 };
+
+  /**
+   * the time step of RFC 6238 and of the plugin (seconds)
+   */
+  private static final int TIME_STEP = 30;
+
+  @Test
+  public void computesRfc4226TokensFromKey() {
+    byte[] scratch = new byte[TinyMfaImplementation.SCRATCH_SIZE];
+    for (int counter = 0; counter < RFC4226_TOKENS.length; counter++) {
+      assertEquals("counter " + counter, RFC4226_TOKENS[counter], TinyMfaImplementation.computeToken(counter, RFC_SECRET, scratch));
+    }
+  }
+
+  @Test
+  public void computesRfc4226TokensFromKeyHandle() {
+    TinyMfaKeyHandle keyHandle = new TinyMfaKeyHandle("rfc4226", RFC_SECRET);
+    try {
+      for (int counter = 0; counter < RFC4226_TOKENS.length; counter++) {
+        assertEquals("counter " + counter, RFC4226_TOKENS[counter], TinyMfaImplementation.computeToken(counter, keyHandle, null));
+      }
+    } finally {
+      keyHandle.destroy();
+    }
+  }
+
+  @Test
+  public void computesRfc6238TokensFromKey() {
+    for (int i = 0; i < RFC6238_TIMES.length; i++) {
+      long step = RFC6238_TIMES[i] / TIME_STEP;
+      assertEquals("time " + RFC6238_TIMES[i], RFC6238_TOKENS[i] % 1000000, TinyMfaImplementation.computeToken(step, RFC_SECRET, null));
+    }
+  }
+
+  @Test
+  public void computesRfc6238TokensFromKeyHandle() {
+    TinyMfaKeyHandle keyHandle = new TinyMfaKeyHandle("rfc6238", RFC_SECRET);
+    try {
+      byte[] scratch = new byte[TinyMfaImplementation.SCRATCH_SIZE];
+      for (int i = 0; i < RFC6238_TIMES.length; i++) {
+        long step = RFC6238_TIMES[i] / TIME_STEP;
+        assertEquals("time " + RFC6238_TIMES[i], RFC6238_TOKENS[i] % 1000000, TinyMfaImplementation.computeToken(step, keyHandle, scratch));
+      }
+    } finally {
+      keyHandle.destroy();
+    }
+  }
+
+  @Test
+  public void matchesJavaxCryptoForAllKeyLengths() throws Exception {
+    Random random  = new Random(2104);
+    byte[] scratch = new byte[TinyMfaImplementation.SCRATCH_SIZE];
+    Mac mac        = Mac.getInstance(TinyMfaImplementation.HMAC_SHA1_ALGORITHM);
+    // up to twice the hmac block, so keys are padded as well as hashed first
+    for (int keyLength = 1; keyLength <= 2 * TinyMfaImplementation.HMAC_BLOCK_SIZE; keyLength++) {
+      byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      long step  = random.nextLong();
+
+      mac.init(new SecretKeySpec(key, TinyMfaImplementation.HMAC_SHA1_ALGORITHM));
+      int expected = truncate(mac.doFinal(ByteBuffer.allocate(8).putLong(step).array()));
+
+      TinyMfaKeyHandle keyHandle = new TinyMfaKeyHandle("key" + keyLength, key);
+      try {
+        assertEquals("key length " + keyLength, expected, TinyMfaImplementation.computeToken(step, key, scratch));
+        assertEquals("key length " + keyLength, expected, TinyMfaImplementation.computeToken(step, keyHandle, scratch));
+      } finally {
+        keyHandle.destroy();
+      }
+    }
+  }
+
+  /**
+   * the dynamic truncation of RFC 4226, section 5.3, to 6 digits
+   */
+  private static int truncate(byte[] hmac) {
+    int offset = hmac[hmac.length - 1] & 0xF;
+    int binary = ((hmac[offset] & 0x7F) << 24) | ((hmac[offset + 1] & 0xFF) << 16) | ((hmac[offset + 2] & 0xFF) << 8) | (hmac[offset + 3] & 0xFF);
+    return binary % 1000000;
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil.QRCODE_FORMAT;
+
+/**
+ * Times the base64 QRCode of the "Your QRCode" page, as the plugin built it
+ * before and as it builds it now. Before, zxing scaled the matrix to the
+ * image, every dark pixel was drawn with Graphics2D.fillRect and ImageIO wrote
+ * the RGB image into a base64 stream. Now {@link TinyMfaPngEncoder} writes a
+ * two color PNG from a pixel per module matrix. The rendering alone is timed
+ * as well. Timings depend on the machine, so the benchmark only runs on
+ * request:
+ * <pre>
+ * mvn -Dtest=TinyMfaQrcodeBenchmark -Dtinymfa.benchmark=true test
+ * </pre>
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaQrcodeBenchmark {
+
+  /**
+   * the system property that enables the benchmark
+   */
+  private static final String ENABLED_PROPERTY = "tinymfa.benchmark";
+
+  /**
+   * the number of different payloads, rendered round robin
+   */
+  private static final int PAYLOADS = 100;
+
+  /**
+   * the number of QRCodes rendered before the timing starts, so the JIT has compiled both paths
+   */
+  private static final int WARMUP_ROUNDS = 2000;
+
+  /**
+   * the number of QRCodes timed per path
+   */
+  private static final int TIMED_ROUNDS = 2000;
+
+  /**
+   * the plugin default colors
+   */
+  private static final String BG_COLOR_HEX = "#ffffff";
+  private static final String FG_COLOR_HEX = "#011e69";
+
+  @Test
+  public void newPathIsFasterThanFillRect() throws Exception {
+    assumeTrue(Boolean.getBoolean(ENABLED_PROPERTY));
+
+    Random random = new Random(1);
+    String[] payloads = new String[PAYLOADS];
+    for (int i = 0; i < PAYLOADS; i++) {
+      payloads[i] = TinyMfaUtilTest.randomPayload(random);
+    }
+
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      fillRectRendering(payloads[round % PAYLOADS]);
+      fillRectBase64(payloads[round % PAYLOADS]);
+      encoderRendering(payloads[round % PAYLOADS]);
+      encoderBase64(payloads[round % PAYLOADS]);
+    }
+
+    double fillRectRendering = timePerQrcode(payloads, 0);
+    double encoderRendering  = timePerQrcode(payloads, 1);
+    double fillRectBase64    = timePerQrcode(payloads, 2);
+    double encoderBase64     = timePerQrcode(payloads, 3);
+
+    System.out.println(String.format("rendering %dx%d: fillRect %.3f ms, TinyMfaPngEncoder %.3f ms (%.1fx)", TinyMfaUtil.QRCODE_SIZE,
+        TinyMfaUtil.QRCODE_SIZE, fillRectRendering, encoderRendering, fillRectRendering / encoderRendering));
+    System.out.println(String.format("base64 PNG: fillRect and ImageIO %.3f ms, TinyMfaPngEncoder %.3f ms (%.1fx)", fillRectBase64,
+        encoderBase64, fillRectBase64 / encoderBase64));
+    assertTrue(encoderBase64 < fillRectBase64);
+  }
+
+  /**
+   * renders every payload round robin with one of the paths
+   *
+   * @return the average time per QRCode (milliseconds)
+   */
+  private static double timePerQrcode(String[] payloads, int path) throws Exception {
+    long start = System.nanoTime();
+    for (int round = 0; round < TIMED_ROUNDS; round++) {
+      String payload = payloads[round % payloads.length];
+      switch (path) {
+        case 0  : fillRectRendering(payload); break;
+        case 1  : encoderRendering(payload); break;
+        case 2  : fillRectBase64(payload); break;
+        default : encoderBase64(payload); break;
+      }
+    }
+    return (System.nanoTime() - start) / 1e6 / TIMED_ROUNDS;
+  }
+
+  /**
+   * the image as the plugin drew it before
+   */
+  private static BufferedImage fillRectRendering(String payload) throws Exception {
+    return TinyMfaUtilTest.fillRectQrcode(payload, TinyMfaUtil.QRCODE_SIZE, BG_COLOR_HEX, FG_COLOR_HEX);
+  }
+
+  /**
+   * the image rows as the encoder builds them, without compression and without keeping the output
+   */
+  private static void encoderRendering(String payload) throws Exception {
+    TinyMfaPngEncoder.write(TinyMfaUtil.encodeQrcode(payload), TinyMfaUtil.QRCODE_SIZE, TinyMfaUtil.QRCODE_SIZE,
+        Color.decode(BG_COLOR_HEX).getRGB(), Color.decode(FG_COLOR_HEX).getRGB(), 0, new OutputStream() {
+          @Override
+          public void write(int b) {
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+          }
+        });
+  }
+
+  /**
+   * the base64 QRCode as the plugin wrote it before
+   */
+  private static String fillRectBase64(String payload) throws Exception {
+    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+    OutputStream base64OutputStream = Base64.getEncoder().wrap(outStream);
+    ImageIO.write(fillRectRendering(payload), "png", base64OutputStream);
+    base64OutputStream.close();
+    return outStream.toString();
+  }
+
+  /**
+   * the base64 QRCode as the plugin writes it now
+   */
+  private static byte[] encoderBase64(String payload) throws Exception {
+    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+    TinyMfaUtil.writeQrcode(QRCODE_FORMAT.BASE64, TinyMfaUtil.encodeQrcode(payload), Color.decode(BG_COLOR_HEX).getRGB(),
+        Color.decode(FG_COLOR_HEX).getRGB(), TinyMfaPngEncoder.DEFAULT_DEFLATE_LEVEL, outStream);
+    return outStream.toByteArray();
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package de.whisperedshouts.tinymfa.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import de.whisperedshouts.tinymfa.util.TinyMfaUtil.QRCODE_FORMAT;
+
+/**
+ * Checks that the PNG images {@link TinyMfaUtil#writeQrcode(QRCODE_FORMAT, BitMatrix, int, int, int, java.io.OutputStream)}
+ * writes, plain and base64 encoded, decode with ImageIO to exactly the pixels
+ * the former fillRect loop drew from a matrix zxing scaled to the image, for
+ * random otpauth payloads of all kinds of lengths.
+ * Run it with
+ * <pre>
+ * mvn -Dtest=TinyMfaUtilTest test
+ * </pre>
+ *
+ * @author Mario Enrico Ragucci, mario@whisperedshouts.de
+ *
+ */
+public class TinyMfaUtilTest {
+
+  /**
+   * the number of random payloads to compare
+   */
+  private static final int PAYLOADS = 200;
+
+  /**
+   * the characters of a base32 secret
+   */
+  private static final String BASE32_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+  /**
+   * the colors the images are compared with: the plugin defaults and a pair of odd ones
+   */
+  private static final String[][] COLORS = { { "#ffffff", "#011e69" }, { "#FFFFFF", "#000000" }, { "#12ab34", "#fe0001" } };
+
+  @Test
+  public void writesPngLikeTheFillRectLoop() throws Exception {
+    Random random = new Random(4226);
+    for (int payloadNumber = 0; payloadNumber < PAYLOADS; payloadNumber++) {
+      String payload = randomPayload(random);
+      String[] color = COLORS[payloadNumber % COLORS.length];
+      // every deflate level has to produce the same image
+      int deflateLevel = payloadNumber % 10;
+
+      BufferedImage expected = fillRectQrcode(payload, TinyMfaUtil.QRCODE_SIZE, color[0], color[1]);
+      ByteArrayOutputStream png = new ByteArrayOutputStream();
+      TinyMfaUtil.writeQrcode(QRCODE_FORMAT.PNG, TinyMfaUtil.encodeQrcode(payload), Color.decode(color[0]).getRGB(),
+          Color.decode(color[1]).getRGB(), deflateLevel, png);
+      assertSamePixels(payload, expected, ImageIO.read(new ByteArrayInputStream(png.toByteArray())));
+    }
+  }
+
+  @Test
+  public void writesBase64LikeTheFillRectLoop() throws Exception {
+    Random random = new Random(9151);
+    for (int payloadNumber = 0; payloadNumber < PAYLOADS; payloadNumber++) {
+      String payload = randomPayload(random);
+      String[] color = COLORS[payloadNumber % COLORS.length];
+
+      BufferedImage expected = fillRectQrcode(payload, TinyMfaUtil.QRCODE_SIZE, color[0], color[1]);
+      ByteArrayOutputStream base64 = new ByteArrayOutputStream();
+      TinyMfaUtil.writeQrcode(QRCODE_FORMAT.BASE64, TinyMfaUtil.encodeQrcode(payload), Color.decode(color[0]).getRGB(),
+          Color.decode(color[1]).getRGB(), TinyMfaPngEncoder.DEFAULT_DEFLATE_LEVEL, base64);
+      byte[] png = Base64.getDecoder().decode(base64.toByteArray());
+      assertSamePixels(payload, expected, ImageIO.read(new ByteArrayInputStream(png)));
+    }
+  }
+
+  @Test
+  public void writesScaledMatrixLikeTheFillRectLoop() throws Exception {
+    Random random = new Random(6238);
+    for (int payloadNumber = 0; payloadNumber < PAYLOADS; payloadNumber++) {
+      String payload = randomPayload(random);
+
+      BufferedImage expected = fillRectQrcode(payload, TinyMfaUtil.QRCODE_SIZE, "#ffffff", "#011e69");
+      ByteArrayOutputStream png = new ByteArrayOutputStream();
+      TinyMfaPngEncoder.write(encodeScaled(payload, TinyMfaUtil.QRCODE_SIZE), TinyMfaUtil.QRCODE_SIZE, TinyMfaUtil.QRCODE_SIZE,
+          0xffffff, 0x011e69, TinyMfaPngEncoder.DEFAULT_DEFLATE_LEVEL, png);
+      assertSamePixels(payload, expected, ImageIO.read(new ByteArrayInputStream(png.toByteArray())));
+    }
+  }
+
+  /**
+   * the QRCode as the plugin drew it before: zxing scales the matrix to the
+   * image, then every dark cell is filled as a rectangle of a pixel
+   */
+  static BufferedImage fillRectQrcode(String payload, int size, String bgColorHex, String fgColorHex) throws Exception {
+    BitMatrix bitMatrix = encodeScaled(payload, size);
+
+    BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    image.createGraphics();
+    Graphics2D graphics = (Graphics2D) image.getGraphics();
+    graphics.setColor(Color.decode(bgColorHex));
+    graphics.fillRect(0, 0, size, size);
+    graphics.setColor(Color.decode(fgColorHex));
+    for (int xPosition = 0; xPosition < size; xPosition++) {
+      for (int yPosition = 0; yPosition < size; yPosition++) {
+        if (bitMatrix.get(xPosition, yPosition)) {
+          graphics.fillRect(xPosition, yPosition, 1, 1);
+        }
+      }
+    }
+    return image;
+  }
+
+  /**
+   * encodes a payload with the hints of the plugin, scaled to the image by zxing
+   */
+  private static BitMatrix encodeScaled(String payload, int size) throws Exception {
+    Map<EncodeHintType, Object> hintMap = new EnumMap<EncodeHintType, Object>(EncodeHintType.class);
+    hintMap.put(EncodeHintType.CHARACTER_SET, "UTF-8");
+    hintMap.put(EncodeHintType.MARGIN, 1);
+    hintMap.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
+    return new QRCodeWriter().encode(payload, BarcodeFormat.QR_CODE, size, size, hintMap);
+  }
+
+  /**
+   * an otpauth url with a random account name, issuer and secret. The lengths
+   * vary, so the QRCodes come in many versions and module sizes
+   */
+  static String randomPayload(Random random) {
+    StringBuilder accountName = new StringBuilder();
+    for (int i = 1 + random.nextInt(60); i > 0; i--) {
+      accountName.append((char) ('a' + random.nextInt(26)));
+    }
+    StringBuilder secret = new StringBuilder();
+    for (int i = 16 + random.nextInt(48); i > 0; i--) {
+      secret.append(BASE32_ALPHABET.charAt(random.nextInt(BASE32_ALPHABET.length())));
+    }
+    return String.format("otpauth://totp/%s@issuer%d.example?secret=%s&issuer=issuer%d", accountName, random.nextInt(1000), secret, random.nextInt(1000));
+  }
+
+  /**
+   * fails with the payload and the first pixel that differs
+   */
+  private static void assertSamePixels(String payload, BufferedImage expected, BufferedImage actual) {
+    assertEquals(payload, expected.getWidth(), actual.getWidth());
+    assertEquals(payload, expected.getHeight(), actual.getHeight());
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        assertEquals(String.format("pixel %d,%d of %s", x, y, payload), expected.getRGB(x, y), actual.getRGB(x, y));
+      }
+    }
+  }
+}